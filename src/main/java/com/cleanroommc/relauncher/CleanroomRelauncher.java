@@ -2,11 +2,19 @@ package com.cleanroommc.relauncher;
 
 import com.cleanroommc.javautils.JavaUtils;
 import com.cleanroommc.javautils.api.JavaVersion;
+import com.cleanroommc.platformutils.Platform;
 import com.cleanroommc.relauncher.config.RelauncherConfiguration;
 import com.cleanroommc.relauncher.download.CleanroomRelease;
+import com.cleanroommc.relauncher.download.cache.CacheCollector;
+import com.cleanroommc.relauncher.download.cache.CacheLock;
+import com.cleanroommc.relauncher.download.cache.ClassDataArchive;
 import com.cleanroommc.relauncher.download.cache.CleanroomCache;
+import com.cleanroommc.relauncher.download.cache.LaunchPlan;
+import com.cleanroommc.relauncher.download.cache.NativesStamp;
 import com.cleanroommc.relauncher.download.schema.Version;
+import com.cleanroommc.relauncher.gui.DownloadProgressGUI;
 import com.cleanroommc.relauncher.gui.RelauncherGUI;
+import com.cleanroommc.relauncher.util.AtomicFiles;
 import com.google.gson.Gson;
 import net.minecraft.launchwrapper.Launch;
 import net.minecraftforge.fml.cleanroomrelauncher.ExitVMBypass;
@@ -16,13 +24,13 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.util.ProcessIdUtil;
 
+import java.awt.GraphicsEnvironment;
 import java.io.*;
 import java.lang.management.ManagementFactory;
 import java.nio.file.*;
 import java.util.*;
 import java.util.jar.Manifest;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class CleanroomRelauncher {
 
@@ -30,6 +38,8 @@ public class CleanroomRelauncher {
     public static final Gson GSON = new Gson();
     public static final Path CACHE_DIR = Paths.get(System.getProperty("user.home"), ".cleanroom", "relauncher");
 
+    private static final String WRAPPER_FILE = "wrapper/com/cleanroommc/relauncher/wrapper/RelaunchMainWrapper.class";
+
     public static RelauncherConfiguration CONFIG = RelauncherConfiguration.read();
 
     public CleanroomRelauncher() { }
@@ -73,14 +83,73 @@ public class CleanroomRelauncher {
         }
     }
 
+    /**
+     * Loads the persisted launch plan of the release, or resolves, downloads and extracts everything and persists a new one.
+     */
+    private static LaunchPlan launchPlan(CleanroomCache releaseCache) {
+        long start = System.currentTimeMillis();
+        String key = LaunchPlan.keyOf(releaseCache.getDirectory().getFileName().toString(), Platform.current(), JavaUtils.jarLocationOf(CleanroomRelauncher.class));
+        LaunchPlan plan = LaunchPlan.load(releaseCache, key);
+        if (plan != null) {
+            LOGGER.info("Loaded launch plan in {}ms.", System.currentTimeMillis() - start);
+            return plan;
+        }
+
+        // Instances launching the same release at once wait for the first one to install it, then reuse its plan
+        try (CacheLock lock = CacheLock.forRelease(releaseCache.getDirectory().getFileName().toString())) {
+            if (lock.isContended()) {
+                plan = LaunchPlan.load(releaseCache, key);
+                if (plan != null) {
+                    LOGGER.info("Another instance installed this release, reusing its launch plan.");
+                    return plan;
+                }
+            }
+            return createLaunchPlan(releaseCache, key);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to create launch plan", e);
+        }
+    }
+
+    private static LaunchPlan createLaunchPlan(CleanroomCache releaseCache, String key) throws IOException {
+        DownloadProgressGUI progressGui = GraphicsEnvironment.isHeadless() ? null : DownloadProgressGUI.attach();
+        List<Version> versions;
+        try {
+            versions = versions(releaseCache);
+        } finally {
+            if (progressGui != null) {
+                progressGui.detach();
+            }
+        }
+
+        String wrapperClassPath = getOrExtract();
+
+        List<String> classPath = new ArrayList<>();
+        classPath.add(wrapperClassPath);
+        versions.stream().map(version -> version.libraryPaths).forEach(classPath::addAll);
+        List<String> nativesPaths = versions.stream().map(version -> version.nativesPaths).flatMap(Collection::stream).collect(Collectors.toList());
+
+        List<Path> fingerprinted = new ArrayList<>();
+        fingerprinted.add(CACHE_DIR.resolve(WRAPPER_FILE));
+        for (String path : classPath.subList(1, classPath.size())) {
+            fingerprinted.add(Paths.get(path));
+        }
+        // A natives directory's own modification time misses changes to the files inside it
+        for (String path : nativesPaths) {
+            fingerprinted.addAll(NativesStamp.filesOf(Paths.get(path)));
+        }
+        LaunchPlan plan = LaunchPlan.create(key, classPath, nativesPaths, versions.get(0).mainClass, fingerprinted);
+        plan.save(releaseCache);
+        return plan;
+    }
+
     private static String getOrExtract() {
         String manifestFile = "META-INF/MANIFEST.MF";
         String wrapperDirectory = "wrapper/com/cleanroommc/relauncher/wrapper";
-        String wrapperFile = wrapperDirectory + "/RelaunchMainWrapper.class";
 
         File relauncherJarFile = JavaUtils.jarLocationOf(CleanroomRelauncher.class);
 
-        try (FileSystem containerFs = FileSystems.newFileSystem(relauncherJarFile.toPath(), null)) {
+        // Other instances may be loading the wrapper, it is only ever replaced through atomic moves
+        try (CacheLock lock = CacheLock.acquire("wrapper"); FileSystem containerFs = FileSystems.newFileSystem(relauncherJarFile.toPath(), null)) {
             String originalHash;
             try (InputStream is = Files.newInputStream(containerFs.getPath(manifestFile))) {
                 originalHash = new Manifest(is).getMainAttributes().getValue("WrapperHash");
@@ -89,7 +158,7 @@ public class CleanroomRelauncher {
             }
 
             Path cachedWrapperDirectory = CleanroomRelauncher.CACHE_DIR.resolve(wrapperDirectory);
-            Path cachedWrapperFile = CleanroomRelauncher.CACHE_DIR.resolve(wrapperFile);
+            Path cachedWrapperFile = CleanroomRelauncher.CACHE_DIR.resolve(WRAPPER_FILE);
 
             boolean skip = false;
 
@@ -106,18 +175,12 @@ public class CleanroomRelauncher {
             }
 
             if (!skip) {
-                if (Files.exists(cachedWrapperDirectory)) {
-                    try (Stream<Path> stream = Files.walk(cachedWrapperDirectory)) {
-                        stream.filter(Files::isRegularFile).map(Path::toFile).forEach(File::delete);
-                    }
-                } else {
-                    Files.createDirectories(cachedWrapperDirectory);
-                }
+                Files.createDirectories(cachedWrapperDirectory);
                 Path wrapperJarDirectory = containerFs.getPath("/wrapper/");
                 try (DirectoryStream<Path> stream = Files.newDirectoryStream(wrapperJarDirectory)) {
                     for (Path path : stream) {
                         Path to = cachedWrapperFile.resolveSibling(path.getFileName().toString());
-                        Files.copy(path, to);
+                        AtomicFiles.write(to, out -> Files.copy(path, out));
                         CleanroomRelauncher.LOGGER.debug("Moved {} to {}", path.toAbsolutePath().toString(), to.toAbsolutePath().toString());
                     }
                 }
@@ -180,23 +243,34 @@ public class CleanroomRelauncher {
         }
 
         CleanroomCache releaseCache = CleanroomCache.of(selected);
+        CacheLock preparing;
+        try {
+            preparing = CacheCollector.holdOff();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to lock the relauncher cache", e);
+        }
 
         LOGGER.info("Preparing Cleanroom v{} and its libraries...", selected.name);
-        List<Version> versions = versions(releaseCache);
-
-        String wrapperClassPath = getOrExtract();
+        LaunchPlan plan = launchPlan(releaseCache);
 
         LOGGER.info("Preparing to relaunch Cleanroom v{}", selected.name);
         List<String> arguments = new ArrayList<>();
         arguments.add(javaPath);
 
-        arguments.add("-cp");
-        String libraryClassPath = versions.stream()
-                .map(version -> version.libraryPaths)
-                .flatMap(Collection::stream)
-                .collect(Collectors.joining(File.pathSeparator));
+        List<String> classPath = plan.getClassPath();
+        ClassDataArchive archive = ClassDataArchive.of(javaPath, javaArgs, selected.tagName, classPath);
+        if (archive != null) {
+            try {
+                arguments.addAll(archive.arguments());
+                classPath = archive.getClassPath();
+            } catch (IOException e) {
+                LOGGER.warn("Unable to prepare the class data sharing archive, launching without it.", e);
+                archive = null;
+            }
+        }
 
-        String fullClassPath = wrapperClassPath + File.pathSeparator + libraryClassPath;
+        arguments.add("-cp");
+        String fullClassPath = String.join(File.pathSeparator, classPath);
         arguments.add(fullClassPath); // Ensure this is not empty
 
         if (javaArgs != null && !javaArgs.isEmpty()) {
@@ -215,8 +289,8 @@ public class CleanroomRelauncher {
         }
 
         arguments.add("-Dcleanroom.relauncher.parent=" + ProcessIdUtil.getProcessId());
-        arguments.add("-Dcleanroom.relauncher.mainClass=" + versions.get(0).mainClass);
-        arguments.add("-Djava.library.path=" + versions.stream().map(version -> version.nativesPaths).flatMap(Collection::stream).collect(Collectors.joining(File.pathSeparator)));
+        arguments.add("-Dcleanroom.relauncher.mainClass=" + plan.getMainClass());
+        arguments.add("-Djava.library.path=" + String.join(File.pathSeparator, plan.getNativesPaths()));
 
         arguments.add("com.cleanroommc.relauncher.wrapper.RelaunchMainWrapper");
 
@@ -239,10 +313,26 @@ public class CleanroomRelauncher {
         processBuilder.inheritIO();
 
         try {
-            Process process = processBuilder.start();
+            Path[] used = archive != null ? archive.getFiles().toArray(new Path[0]) : new Path[0];
+            CacheLock inUse;
+            Process process;
+            try {
+                // Marked before collection is allowed again, for as long as this instance runs
+                inUse = CacheCollector.markInUse(releaseCache, plan, used);
+                process = processBuilder.start();
+            } finally {
+                preparing.close();
+            }
+
+            // The game is starting up in its own JVM, this one is idle until it exits
+            CacheCollector.collectInBackground(releaseCache, plan, used);
 
             int exitCode = process.waitFor();
             LOGGER.info("Process exited with code: {}", exitCode);
+            if (archive != null) {
+                archive.settle(exitCode);
+            }
+            inUse.close();
             ExitVMBypass.exit(exitCode);
         } catch (IOException | InterruptedException e) {
             throw new RuntimeException(e);
@@ -9,6 +9,10 @@ import net.minecraft.launchwrapper.Launch;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class RelauncherConfiguration {
 
@@ -35,6 +39,94 @@ public class RelauncherConfiguration {
     private String javaExecutablePath;
     @SerializedName("args")
     private String javaArguments = "";
+    /**
+     * Most downloads that may ever run at once, the adaptive limit never grows past it
+     */
+    @SerializedName("downloadThreads")
+    private int downloadThreads = 32;
+    /**
+     * Downloads started at once before the adaptive limit has measured any throughput
+     */
+    @SerializedName("downloadConcurrency")
+    private int downloadConcurrency = 4;
+    /**
+     * Most downloads that may run against a single host at once
+     */
+    @SerializedName("downloadsPerHost")
+    private int downloadsPerHost = 8;
+    /**
+     * Byte ranges a large file is split into and fetched in parallel when its host supports them, 1 to disable
+     */
+    @SerializedName("downloadChunks")
+    private int downloadChunks = 4;
+    /**
+     * Seconds to wait for a connection to a host
+     */
+    @SerializedName("downloadConnectTimeout")
+    private int downloadConnectTimeout = 10;
+    /**
+     * Seconds a read from an open connection may block before the attempt fails
+     */
+    @SerializedName("downloadReadTimeout")
+    private int downloadReadTimeout = 30;
+    /**
+     * Seconds a single transfer may take, extended by a second for every 64 KiB it has to fetch
+     */
+    @SerializedName("downloadDeadline")
+    private int downloadDeadline = 600;
+    /**
+     * Seconds in which a transfer must receive at least 4 KiB before it is abandoned and retried, also caps the read timeout
+     */
+    @SerializedName("downloadStallWindow")
+    private int downloadStallWindow = 15;
+    /**
+     * Start a second request against a mirror when a download is slower to respond than usual, keeping whichever finishes first
+     */
+    @SerializedName("hedgeDownloads")
+    private boolean hedgingDownloads = true;
+    /**
+     * Never touch the network, everything is resolved from the cache. Also enabled by -Dcleanroom.relauncher.offline=true
+     */
+    @SerializedName("offline")
+    private boolean offline;
+    /**
+     * Minutes before the cached release list is refreshed in the background
+     */
+    @SerializedName("releasesCacheTtl")
+    private int releasesCacheTtl = 60;
+    /**
+     * Directory of the SHA-1 addressed store libraries and natives are linked from, may be shared between users of a machine.
+     * Defaults to blobs/ in the relauncher's cache
+     */
+    @SerializedName("blobStore")
+    private String blobStore;
+    /**
+     * MiB the relauncher's cache may take up before least recently used releases and libraries are evicted, 0 to disable
+     */
+    @SerializedName("cacheSizeLimit")
+    private long cacheSizeLimit = 2048;
+    /**
+     * Extract natives from a natives jar's bytes while it is still downloading, instead of reading the jar back afterwards
+     */
+    @SerializedName("streamNatives")
+    private boolean streamingNatives;
+    /**
+     * Record a class data sharing archive of the relaunched JVM on a release's first launch and map it into later launches
+     */
+    @SerializedName("shareClassData")
+    private boolean sharingClassData = true;
+    /**
+     * Library directories of other launchers to take matching libraries from, in addition to the default
+     * .minecraft, Prism Launcher and MultiMC locations
+     */
+    @SerializedName("libraryRoots")
+    private List<String> libraryRoots = new ArrayList<>();
+    /**
+     * Source url prefixes mapped to the prefixes of mirrors serving the same files,
+     * e.g. {@code "https://libraries.minecraft.net/": ["https://nexus.example.com/repository/minecraft/"]}
+     */
+    @SerializedName("mirrors")
+    private Map<String, List<String>> mirrors = new LinkedHashMap<>();
 
     public String getCleanroomVersion() {
         return cleanroomVersion;
@@ -52,6 +144,74 @@ public class RelauncherConfiguration {
         return javaArguments;
     }
 
+    public int getDownloadThreads() {
+        return downloadThreads;
+    }
+
+    public int getDownloadConcurrency() {
+        return downloadConcurrency;
+    }
+
+    public int getDownloadsPerHost() {
+        return downloadsPerHost;
+    }
+
+    public int getDownloadChunks() {
+        return downloadChunks;
+    }
+
+    public int getDownloadConnectTimeout() {
+        return downloadConnectTimeout;
+    }
+
+    public int getDownloadReadTimeout() {
+        return downloadReadTimeout;
+    }
+
+    public int getDownloadDeadline() {
+        return downloadDeadline;
+    }
+
+    public int getDownloadStallWindow() {
+        return downloadStallWindow;
+    }
+
+    public boolean isHedgingDownloads() {
+        return hedgingDownloads;
+    }
+
+    public boolean isOffline() {
+        return offline;
+    }
+
+    public int getReleasesCacheTtl() {
+        return releasesCacheTtl;
+    }
+
+    public String getBlobStore() {
+        return blobStore;
+    }
+
+    public long getCacheSizeLimit() {
+        return cacheSizeLimit;
+    }
+
+    public boolean isStreamingNatives() {
+        return streamingNatives;
+    }
+
+    public boolean isSharingClassData() {
+        return sharingClassData;
+    }
+
+    public List<String> getLibraryRoots() {
+        return libraryRoots;
+    }
+
+    public Map<String, List<String>> getMirrors() {
+        return mirrors;
+    }
+
     public void setCleanroomVersion(String cleanroomVersion) {
         this.cleanroomVersion = cleanroomVersion;
     }
@@ -0,0 +1,105 @@
+package com.cleanroommc.relauncher.download;
+
+import com.cleanroommc.relauncher.CleanroomRelauncher;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many downloads run at once, adjusting the limit the way TCP adjusts its congestion window:
+ * it grows by one while aggregate throughput keeps improving and is cut multiplicatively when throughput drops or errors appear.
+ */
+final class AdaptiveConcurrency {
+
+    private static final double IMPROVEMENT = 1.05;
+    private static final double DROP = 0.75;
+    private static final double SMOOTHING = 0.5;
+
+    private final int minimum, maximum;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger errors = new AtomicInteger();
+
+    private int limit, active;
+    private long lastSample = System.nanoTime();
+    private double throughput, best;
+
+    AdaptiveConcurrency(int initial, int maximum) {
+        this.minimum = 1;
+        this.maximum = Math.max(1, maximum);
+        this.limit = Math.max(this.minimum, Math.min(initial, this.maximum));
+    }
+
+    /**
+     * @return whether a slot was taken, which must be given back through {@link #release()}
+     */
+    synchronized boolean tryAcquire() {
+        if (this.active >= this.limit) {
+            return false;
+        }
+        this.active++;
+        return true;
+    }
+
+    synchronized void release() {
+        this.active--;
+    }
+
+    void recordBytes(long transferred) {
+        this.bytes.addAndGet(transferred);
+    }
+
+    void recordError() {
+        this.errors.incrementAndGet();
+    }
+
+    synchronized int limit() {
+        return this.limit;
+    }
+
+    /**
+     * @return aggregate bytes per second, smoothed over the last few samples
+     */
+    synchronized long throughput() {
+        return (long) this.throughput;
+    }
+
+    /**
+     * Called periodically, measures throughput since the last sample and adjusts the limit.
+     *
+     * @param backlog how many downloads are queued waiting for a slot
+     */
+    synchronized void sample(int backlog) {
+        long now = System.nanoTime();
+        long elapsed = now - this.lastSample;
+        this.lastSample = now;
+        long transferred = this.bytes.getAndSet(0L);
+        int errors = this.errors.getAndSet(0);
+        if (this.active == 0 && backlog == 0) {
+            // Idle, nothing to learn from this sample
+            this.throughput = 0;
+            this.best = 0;
+            return;
+        }
+        double current = transferred * 1_000_000_000.0 / Math.max(1L, elapsed);
+        this.throughput = this.throughput <= 0 ? current : this.throughput + SMOOTHING * (current - this.throughput);
+
+        int previous = this.limit;
+        if (errors > 0) {
+            this.limit = Math.max(this.minimum, this.limit / 2);
+            this.best = this.throughput;
+        } else if (this.best > 0 && this.throughput < this.best * DROP) {
+            this.limit = Math.max(this.minimum, (int) (this.limit * DROP));
+            this.best = this.throughput;
+        } else if (this.throughput > this.best * IMPROVEMENT) {
+            this.best = this.throughput;
+            // Only worth growing if every slot is in use and more downloads are waiting
+            if (this.active >= this.limit && backlog > 0) {
+                this.limit = Math.min(this.maximum, this.limit + 1);
+            }
+        }
+        if (this.limit != previous) {
+            CleanroomRelauncher.LOGGER.debug("Download concurrency {} -> {} at {} KiB/s ({} errors)", previous, this.limit, (long) this.throughput / 1024, errors);
+        }
+    }
+
+}
@@ -23,9 +23,9 @@ public class CleanroomInstaller implements CleanroomZipArtifact {
     }
 
     @Override
-    public void install(String url) {
+    public void install(String url, long size) {
         if (!Files.exists(this.location)) {
-            GlobalDownloader.INSTANCE.immediatelyFrom(url, this.location.toFile());
+            GlobalDownloader.INSTANCE.immediatelyFrom(url, this.location.toFile(), null, size);
         }
     }
 
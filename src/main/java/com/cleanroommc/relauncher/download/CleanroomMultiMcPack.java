@@ -1,11 +1,28 @@
 package com.cleanroommc.relauncher.download;
 
+import com.cleanroommc.relauncher.CleanroomRelauncher;
 import com.cleanroommc.relauncher.download.cache.CleanroomCache;
+import com.cleanroommc.relauncher.download.schema.Version;
+import com.cleanroommc.relauncher.util.AtomicFiles;
+import com.cleanroommc.relauncher.util.Workers;
+import org.apache.commons.io.IOUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 @Deprecated
 public class CleanroomMultiMcPack implements CleanroomZipArtifact {
@@ -17,15 +34,76 @@ public class CleanroomMultiMcPack implements CleanroomZipArtifact {
     private final String version;
     private final Path location;
 
+    private CompletableFuture<Void> streaming = CompletableFuture.completedFuture(null);
+
     private CleanroomMultiMcPack(String version, Path location) {
         this.version = version;
         this.location = location;
     }
 
     @Override
-    public void install(String url) throws IOException {
+    public void install(String url, long size) throws IOException {
         if (!Files.exists(this.location)) {
-            GlobalDownloader.INSTANCE.immediatelyFrom(url, this.location.toFile());
+            GlobalDownloader.INSTANCE.immediatelyFrom(url, this.location.toFile(), null, size);
+        }
+    }
+
+    /**
+     * Downloads the pack and installs it in the same pass, its entries are written out while the zip is still arriving.
+     * A large pack is fetched as parallel byte ranges and read in order as they come in, so the patches at its start are
+     * read before the rest of it is in.
+     * Each patch json is parsed as soon as it has been read, so that its libraries can be queued before the rest of the
+     * pack is in. Should streaming not work out, the pack is extracted from the downloaded zip as usual.
+     * {@link #awaitStreaming()} must be called before anything is taken from the installed pack.
+     * <p>
+     * The pack is only checked against the size its release lists, there is no digest to verify it against. Patches are
+     * read before even that check, and every library they list is verified against its own SHA-1 regardless. Should the
+     * patches libraries were queued from have come from an attempt that failed, they are compared with those of the pack
+     * that was kept, {@link #awaitStreaming()} fails if they differ.
+     *
+     * @return the forge, minecraft and lwjgl patches, in that order
+     */
+    public List<CompletableFuture<Version>> installStreaming(CleanroomCache cache, String url, long size) {
+        PackStream stream = new PackStream(cache);
+        CompletableFuture<Void> installed = this.streaming = GlobalDownloader.INSTANCE.from(url, this.location.toFile(), null, size, stream).thenRunAsync(() -> {
+            try {
+                if (!stream.committed) {
+                    CleanroomRelauncher.LOGGER.debug("Pack {} was not installed while streaming, extracting it instead", this.version);
+                    this.extract(cache);
+                }
+                stream.compare();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, Workers.POOL);
+        List<CompletableFuture<Version>> patches = new ArrayList<>();
+        for (Map.Entry<String, Path> patch : stream.patches.entrySet()) {
+            CompletableFuture<Version> parsed = stream.parsed.get(patch.getKey());
+            // Whichever comes first, the patch parsed from the stream or the pack installed without it
+            installed.whenComplete(($, t) -> {
+                if (t != null) {
+                    parsed.completeExceptionally(t);
+                } else if (!parsed.isDone()) {
+                    try {
+                        parsed.complete(Version.parse(patch.getValue()));
+                    } catch (IOException e) {
+                        parsed.completeExceptionally(e);
+                    }
+                }
+            });
+            patches.add(parsed);
+        }
+        return patches;
+    }
+
+    public void awaitStreaming() throws IOException {
+        try {
+            this.streaming.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
         }
     }
 
@@ -45,4 +123,99 @@ public class CleanroomMultiMcPack implements CleanroomZipArtifact {
         }
     }
 
+    /**
+     * Writes the patches and the universal jar next to their final names while the pack downloads, they are moved into place
+     * once the pack verified.
+     */
+    private static final class PackStream implements StreamConsumer {
+
+        private static final String LIBRARIES = "libraries/";
+
+        private final Map<String, Path> patches = new LinkedHashMap<>();
+        private final Map<String, CompletableFuture<Version>> parsed = new LinkedHashMap<>();
+        private final Map<String, byte[]> read = new ConcurrentHashMap<>();
+        private final Path universalJar;
+
+        private volatile boolean consumed;
+        private volatile boolean committed;
+
+        private PackStream(CleanroomCache cache) {
+            this.patches.put("patches/net.minecraftforge.json", cache.getForgeJson());
+            this.patches.put("patches/net.minecraft.json", cache.getMinecraftJson());
+            this.patches.put("patches/org.lwjgl3.json", cache.getLwjglVersionJson());
+            for (String name : this.patches.keySet()) {
+                this.parsed.put(name, new CompletableFuture<>());
+            }
+            this.universalJar = cache.getUniversalJar();
+        }
+
+        @Override
+        public void consume(InputStream stream) throws IOException {
+            this.consumed = false;
+            int written = 0;
+            boolean universalJar = false;
+            // Not closed, the downloader owns the stream
+            ZipInputStream zip = new ZipInputStream(stream);
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                String name = entry.getName().startsWith("/") ? entry.getName().substring(1) : entry.getName();
+                Path target = this.patches.get(name);
+                if (target != null) {
+                    byte[] json = IOUtils.toByteArray(zip);
+                    Files.write(streamed(target), json);
+                    // Entries are CRC checked once read in full, a patch seen by an earlier failed attempt is just as good
+                    if (this.parsed.get(name).complete(Version.parse(new ByteArrayInputStream(json)))) {
+                        this.read.put(name, json);
+                        CleanroomRelauncher.LOGGER.debug("Queueing the libraries of {} before the pack it came from is verified", name);
+                    }
+                    written++;
+                } else if (!universalJar && !entry.isDirectory() && name.startsWith(LIBRARIES)) {
+                    // Not valid ever since 0.3.19
+                    Files.copy(zip, streamed(this.universalJar), StandardCopyOption.REPLACE_EXISTING);
+                    universalJar = true;
+                }
+            }
+            this.consumed = written == this.patches.size();
+            if (!universalJar) {
+                Files.deleteIfExists(streamed(this.universalJar));
+            }
+        }
+
+        @Override
+        public void verified() {
+            if (!this.consumed) {
+                return;
+            }
+            try {
+                for (Path target : this.patches.values()) {
+                    AtomicFiles.move(streamed(target), target);
+                }
+                Path universalJar = streamed(this.universalJar);
+                if (Files.exists(universalJar)) {
+                    AtomicFiles.move(universalJar, this.universalJar);
+                }
+                this.committed = true;
+            } catch (IOException e) {
+                CleanroomRelauncher.LOGGER.warn("Unable to move the streamed pack into place", e);
+            }
+        }
+
+        /**
+         * Compares the patches libraries were queued from with those of the pack that was kept, which was possibly installed
+         * from a later attempt or without streaming. Patches read from the kept attempt itself always match.
+         */
+        private void compare() throws IOException {
+            for (Map.Entry<String, byte[]> patch : this.read.entrySet()) {
+                if (!Arrays.equals(patch.getValue(), Files.readAllBytes(this.patches.get(patch.getKey())))) {
+                    throw new IOException(String.format("%s of the downloaded pack differs from the one its libraries were queued from", patch.getKey()));
+                }
+            }
+        }
+
+        private static Path streamed(Path target) {
+            return target.resolveSibling(target.getFileName() + ".stream");
+        }
+
+    }
+
 }
@@ -1,65 +1,128 @@
 package com.cleanroommc.relauncher.download;
 
 import com.cleanroommc.relauncher.CleanroomRelauncher;
+import com.cleanroommc.relauncher.download.cache.CacheLock;
+import com.cleanroommc.relauncher.util.AtomicFiles;
 import com.google.gson.annotations.SerializedName;
 
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.time.Duration;
-import java.util.Arrays;
+import java.nio.file.attribute.FileTime;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class CleanroomRelease {
 
     private static final Path CACHE_FILE = CleanroomRelauncher.CACHE_DIR.resolve("releases.json");
+    private static final Path VALIDATORS_FILE = CleanroomRelauncher.CACHE_DIR.resolve("releases.validators.json");
+    private static final String RELEASES_URL = "https://api.github.com/repos/CleanroomMC/Cleanroom/releases?per_page=100";
 
     public static List<CleanroomRelease> queryAll() throws IOException {
-        long ttlM = Duration.ofHours(1).toMillis(); // TODO: configurable, this is temp
+        long ttlM = TimeUnit.MINUTES.toMillis(CleanroomRelauncher.CONFIG.getReleasesCacheTtl());
         if (Files.exists(CACHE_FILE)) {
             CleanroomRelauncher.LOGGER.info("Loading releases from cached json.");
             try {
                 long fileModifiedM = Files.getLastModifiedTime(CACHE_FILE).toMillis();
                 long nowM = System.currentTimeMillis();
                 long diffM = nowM - fileModifiedM;
-                if (diffM < ttlM) {
-                    return fetchReleasesFromCache(CACHE_FILE);
+                List<CleanroomRelease> releases = fetchReleasesFromCache(CACHE_FILE);
+                if (diffM >= ttlM) {
+                    // Launch with what we have, newer releases are picked up on the next launch
+                    refreshInBackground(Validators.read(VALIDATORS_FILE));
                 }
+                return releases;
             } catch (Throwable t) {
                 Files.delete(CACHE_FILE);
+                Files.deleteIfExists(VALIDATORS_FILE);
                 CleanroomRelauncher.LOGGER.error("Unable to read cached releases.json, attempting to connect to GitHub and rebuild.", t);
             }
         } else {
             CleanroomRelauncher.LOGGER.info("No cache found, fetching releases...");
         }
-        List<CleanroomRelease> releases = fetchReleasesFromGithub();
+        if (GlobalDownloader.INSTANCE.isOffline()) {
+            throw new IOException("Running offline and no cached releases are available");
+        }
+        return refresh(null);
+    }
 
-        // After fetching releases, save them to the cache
-        saveReleasesToCache(CACHE_FILE, releases);
-        return releases;
+    private static void refreshInBackground(Validators validators) {
+        Thread thread = new Thread(() -> {
+            try {
+                if (!GlobalDownloader.INSTANCE.isOffline()) {
+                    refresh(validators);
+                }
+            } catch (Throwable t) {
+                CleanroomRelauncher.LOGGER.warn("Unable to refresh cached releases, retrying on the next launch.", t);
+            }
+        }, "Relauncher Release Refresh");
+        thread.setDaemon(true);
+        thread.start();
     }
 
-    private static List<CleanroomRelease> fetchReleasesFromGithub() throws IOException {
-        try {
-            URL url = new URL("https://api.github.com/repos/CleanroomMC/Cleanroom/releases");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("Accept", "application/vnd.github.v3+json");
+    private static List<CleanroomRelease> refresh(Validators validators) throws IOException {
+        Fetched fetched = fetchReleasesFromGithub(validators);
 
-            if (connection.getResponseCode() != 200) {
-                throw new IOException("Failed to fetch releases: HTTP error code " + connection.getResponseCode());
+        if (fetched.releases == null) {
+            // Nothing changed upstream, renew the cached copy instead of downloading it again
+            CleanroomRelauncher.LOGGER.info("Cached releases are up to date.");
+            Files.setLastModifiedTime(CACHE_FILE, FileTime.fromMillis(System.currentTimeMillis()));
+            return fetchReleasesFromCache(CACHE_FILE);
+        }
+
+        // After fetching releases, save them to the cache. Locked, so the validators always describe the cached releases
+        try (CacheLock lock = CacheLock.acquire("releases")) {
+            saveReleasesToCache(CACHE_FILE, fetched.releases);
+            fetched.validators.save(VALIDATORS_FILE);
+        }
+        return fetched.releases;
+    }
+
+    private static Fetched fetchReleasesFromGithub(Validators validators) throws IOException {
+        MirrorSelector mirrors = GlobalDownloader.INSTANCE.mirrors();
+        IOException failure = null;
+        for (URL url : mirrors.candidates(new URL(RELEASES_URL), -1L)) {
+            try {
+                long start = System.currentTimeMillis();
+                Fetched fetched = fetchReleasesFrom(url, validators);
+                mirrors.recordSuccess(url, System.currentTimeMillis() - start, 0L, 0L);
+                return fetched;
+            } catch (IOException e) {
+                mirrors.recordFailure(url);
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        throw failure;
+    }
+
+    private static Fetched fetchReleasesFrom(URL url, Validators validators) throws IOException {
+        try {
+            HttpURLConnection connection = ReleasePages.open(url);
+            if (validators != null) {
+                validators.apply(connection);
             }
 
-            try (InputStreamReader reader = new InputStreamReader(connection.getInputStream())) {
-                return Arrays.asList(CleanroomRelauncher.GSON.fromJson(reader, CleanroomRelease[].class));
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && validators != null) {
+                return new Fetched(null, validators);
             }
+            if (code != 200) {
+                throw new IOException("Failed to fetch releases: HTTP error code " + code);
+            }
+
+            ReleasePages pages = new ReleasePages(connection);
+            List<CleanroomRelease> releases = pages.releases();
+            CleanroomRelauncher.LOGGER.debug("Parsed {} releases from {} page(s) in {}ms", releases.size(), pages.pages(), pages.parseMillis());
+            return new Fetched(releases, Validators.of(connection));
         } catch (Exception e) {
-            throw new IOException("Failed to fetch or parse releases", e);
+            throw new IOException("Failed to fetch or parse releases from " + url, e);
         }
     }
 
@@ -73,7 +136,7 @@ public class CleanroomRelease {
      */
     private static List<CleanroomRelease> fetchReleasesFromCache(Path releaseFile) throws IOException {
         try (Reader reader = Files.newBufferedReader(releaseFile)) {
-            return Arrays.asList(CleanroomRelauncher.GSON.fromJson(reader, CleanroomRelease[].class));
+            return ReleasePages.parse(reader);
         }
     }
 
@@ -87,11 +150,9 @@ public class CleanroomRelease {
      */
     private static void saveReleasesToCache(Path releaseFile, List<CleanroomRelease> releases) {
         try {
-            Files.createDirectories(releaseFile.getParent());
-            try (Writer writer = Files.newBufferedWriter(releaseFile)) {
-                CleanroomRelauncher.GSON.toJson(releases, writer);
-                CleanroomRelauncher.LOGGER.info("Saved {} releases to cache.", releases.size());
-            }
+            // Swapped in, a concurrent launch never reads a partial file
+            AtomicFiles.writeJson(releaseFile, releases);
+            CleanroomRelauncher.LOGGER.info("Saved {} releases to cache.", releases.size());
         } catch (IOException e) {
             throw new RuntimeException("Unable to save releases to cache.", e);
         }
@@ -121,6 +182,73 @@ public class CleanroomRelease {
         return null;
     }
 
+    private static class Fetched {
+
+        /**
+         * null when the cached releases are still current
+         */
+        private final List<CleanroomRelease> releases;
+        private final Validators validators;
+
+        private Fetched(List<CleanroomRelease> releases, Validators validators) {
+            this.releases = releases;
+            this.validators = validators;
+        }
+
+    }
+
+    /**
+     * HTTP cache validators of the last full releases response, sent back so GitHub can answer with 304 Not Modified,
+     * which does not count against the anonymous rate limit.
+     */
+    private static class Validators {
+
+        private static Validators of(HttpURLConnection connection) {
+            Validators validators = new Validators();
+            validators.etag = connection.getHeaderField("ETag");
+            validators.lastModified = connection.getHeaderField("Last-Modified");
+            return validators;
+        }
+
+        private static Validators read(Path file) {
+            if (!Files.exists(file)) {
+                return null;
+            }
+            try (Reader reader = Files.newBufferedReader(file)) {
+                return CleanroomRelauncher.GSON.fromJson(reader, Validators.class);
+            } catch (Exception e) {
+                CleanroomRelauncher.LOGGER.warn("Unable to read {}, releases will be fetched in full.", file, e);
+                return null;
+            }
+        }
+
+        private String etag;
+        @SerializedName("last_modified")
+        private String lastModified;
+
+        private void apply(HttpURLConnection connection) {
+            if (this.etag != null) {
+                connection.setRequestProperty("If-None-Match", this.etag);
+            }
+            if (this.lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", this.lastModified);
+            }
+        }
+
+        private void save(Path file) {
+            try {
+                if (this.etag == null && this.lastModified == null) {
+                    Files.deleteIfExists(file);
+                    return;
+                }
+                AtomicFiles.writeJson(file, this);
+            } catch (IOException e) {
+                CleanroomRelauncher.LOGGER.warn("Unable to save {}", file, e);
+            }
+        }
+
+    }
+
     public static class Asset {
 
         public String name;
@@ -6,7 +6,7 @@ import java.io.IOException;
 
 public interface CleanroomZipArtifact {
 
-    void install(String url) throws IOException;
+    void install(String url, long size) throws IOException;
 
     void extract(CleanroomCache cache) throws IOException;
 
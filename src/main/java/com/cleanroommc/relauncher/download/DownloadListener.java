@@ -0,0 +1,12 @@
+package com.cleanroommc.relauncher.download;
+
+/**
+ * Receives coalesced {@link DownloadProgress} snapshots, at most a few times per second and only when something changed.
+ * Called from the downloader's scheduler thread, implementations must hand off to their own thread for anything slow.
+ */
+@FunctionalInterface
+public interface DownloadListener {
+
+    void onProgress(DownloadProgress progress);
+
+}
@@ -0,0 +1,66 @@
+package com.cleanroommc.relauncher.download;
+
+import java.util.List;
+
+/**
+ * A point-in-time view of every download the {@link GlobalDownloader} has been asked for since it was last idle.
+ * Byte totals are based on the sizes declared by version jsons and release assets.
+ */
+public final class DownloadProgress {
+
+    public final long totalBytes;
+    public final long completedBytes;
+    public final long bytesPerSecond;
+    /**
+     * Estimated seconds until all downloads complete, -1 if unknown
+     */
+    public final long etaSeconds;
+    public final int totalFiles;
+    public final int completedFiles;
+    public final int failedFiles;
+    public final List<FileState> files;
+
+    DownloadProgress(long totalBytes, long completedBytes, long bytesPerSecond, long etaSeconds, int totalFiles, int completedFiles, int failedFiles, List<FileState> files) {
+        this.totalBytes = totalBytes;
+        this.completedBytes = completedBytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.etaSeconds = etaSeconds;
+        this.totalFiles = totalFiles;
+        this.completedFiles = completedFiles;
+        this.failedFiles = failedFiles;
+        this.files = files;
+    }
+
+    public boolean isFinished() {
+        return this.completedFiles + this.failedFiles >= this.totalFiles;
+    }
+
+    public enum State {
+
+        QUEUED,
+        DOWNLOADING,
+        COMPLETED,
+        FAILED
+
+    }
+
+    public static final class FileState {
+
+        public final String name;
+        /**
+         * Declared size of the file, -1 if unknown
+         */
+        public final long size;
+        public final long transferred;
+        public final State state;
+
+        FileState(String name, long size, long transferred, State state) {
+            this.name = name;
+            this.size = size;
+            this.transferred = transferred;
+            this.state = state;
+        }
+
+    }
+
+}
@@ -0,0 +1,788 @@
+package com.cleanroommc.relauncher.download;
+
+import com.cleanroommc.relauncher.CleanroomRelauncher;
+import com.cleanroommc.relauncher.download.cache.VerificationIndex;
+import com.cleanroommc.relauncher.util.AtomicFiles;
+import com.cleanroommc.relauncher.util.Workers;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A single file transfer, verified against its expected size and SHA-1 while the bytes are being written.
+ */
+final class FileDownload {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long MIN_CHUNK_SIZE = 2L * 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(64 * 1024));
+
+    private final GlobalDownloader downloader;
+    private final URL url;
+    private final Path destination;
+    private final String sha1;
+    private final long size;
+    private final ProgressTracker.Tracked tracked;
+    private final StreamConsumer consumer;
+
+    FileDownload(GlobalDownloader downloader, URL url, File destination, String sha1, long size, ProgressTracker.Tracked tracked) {
+        this(downloader, url, destination, sha1, size, tracked, null);
+    }
+
+    FileDownload(GlobalDownloader downloader, URL url, File destination, String sha1, long size, ProgressTracker.Tracked tracked, StreamConsumer consumer) {
+        this.downloader = downloader;
+        this.url = url;
+        this.destination = destination.toPath();
+        this.sha1 = sha1;
+        this.size = size;
+        this.tracked = tracked;
+        this.consumer = consumer;
+    }
+
+    long size() {
+        return this.size;
+    }
+
+    void run() throws IOException {
+        IOException failure = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                this.race();
+                if (this.sha1 != null) {
+                    VerificationIndex.INSTANCE.record(this.destination, this.sha1);
+                }
+                return;
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+                CleanroomRelauncher.LOGGER.warn("Attempt {}/{} to download {} failed: {}", attempt, MAX_ATTEMPTS, this.url, e.getMessage());
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Runs the transfer. If the server has not responded once the downloader's observed p95 response time has passed, a
+     * hedged duplicate is sent to the next best source and whichever verifies first is moved into place, the other is
+     * cancelled. A transfer that is slow once it started is left to the stall detection and deadline instead.
+     */
+    private void race() throws IOException {
+        AtomicReference<Attempt> winner = new AtomicReference<>();
+        // Ranked anew every attempt, a host that just failed drops behind the others
+        List<URL> sources = this.downloader.mirrors().candidates(this.url, this.size);
+        Attempt primary = new Attempt(sources.get(0), this.destination.resolveSibling(this.destination.getFileName() + ".part"), true);
+        // Hedging to the same source would only add to its load
+        URL alternative = sources.stream().filter(source -> !source.toExternalForm().equals(primary.source.toExternalForm())).findFirst().orElse(null);
+        long hedgeDelay = alternative == null ? -1L : this.downloader.hedgeDelay(this.size);
+        if (hedgeDelay <= 0) {
+            this.transfer(primary, winner);
+            return;
+        }
+
+        // Both attempts run off this thread, so that a loser stuck in a blocking read never holds up the winner
+        CompletableFuture<Boolean> primaryResult = this.transferAsync(primary, winner);
+        boolean late = false;
+        try {
+            CompletableFuture.anyOf(primaryResult, primary.responded).get(hedgeDelay, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            late = true;
+        } catch (ExecutionException ignored) {
+            // Thrown again below
+        } catch (InterruptedException e) {
+            primary.cancel();
+            throw new InterruptedIOException("Interrupted while downloading " + this.url);
+        }
+        if (!late || !this.downloader.tryAcquireHedge(alternative)) {
+            try {
+                primaryResult.join();
+                return;
+            } catch (CompletionException e) {
+                throw asIOException(e.getCause());
+            }
+        }
+
+        CleanroomRelauncher.LOGGER.debug("{} did not respond within {}ms, hedging with a request to {}.", primary.source, hedgeDelay, alternative);
+        Attempt hedge = new Attempt(alternative, this.destination.resolveSibling(this.destination.getFileName() + ".hedge.part"), false);
+        CompletableFuture<Boolean> hedgeResult;
+        try {
+            hedgeResult = this.transferAsync(hedge, winner);
+        } catch (RuntimeException e) {
+            this.downloader.releaseHedge(alternative);
+            throw e;
+        }
+        hedgeResult.whenComplete(($, t) -> {
+            try {
+                // Left behind by a hedge that failed, a hedge is never resumed
+                Files.deleteIfExists(hedge.part);
+            } catch (IOException e) {
+                CleanroomRelauncher.LOGGER.debug("Unable to delete {}", hedge.part, e);
+            } finally {
+                this.downloader.releaseHedge(alternative);
+            }
+        });
+
+        CompletableFuture<Void> settled = new CompletableFuture<>();
+        Runnable settle = () -> {
+            if (hasWon(primaryResult) || hasWon(hedgeResult)) {
+                settled.complete(null);
+            } else if (primaryResult.isDone() && hedgeResult.isDone()) {
+                IOException failure = new IOException("Both the request and its hedge failed");
+                for (CompletableFuture<Boolean> result : Arrays.asList(primaryResult, hedgeResult)) {
+                    result.whenComplete(($, t) -> {
+                        if (t != null) {
+                            failure.addSuppressed(t instanceof CompletionException ? t.getCause() : t);
+                        }
+                    });
+                }
+                settled.completeExceptionally(failure);
+            }
+        };
+        primaryResult.whenComplete(($, t) -> settle.run());
+        hedgeResult.whenComplete(($, t) -> settle.run());
+        try {
+            settled.join();
+        } catch (CompletionException e) {
+            throw asIOException(e.getCause());
+        } finally {
+            primary.cancel();
+            hedge.cancel();
+        }
+    }
+
+    private CompletableFuture<Boolean> transferAsync(Attempt attempt, AtomicReference<Attempt> winner) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return this.transfer(attempt, winner);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            } finally {
+                attempt.responded.complete(null);
+            }
+        }, this.downloader.hedgeExecutor());
+    }
+
+    private static boolean hasWon(CompletableFuture<Boolean> result) {
+        return result.isDone() && !result.isCompletedExceptionally() && result.join();
+    }
+
+    private static IOException asIOException(Throwable t) {
+        return t instanceof IOException ? (IOException) t : new IOException(t);
+    }
+
+    /**
+     * Bytes are written to a .part file. A resumable attempt keeps it across failures and even restarts, the next attempt
+     * requests only the missing range. The destination only appears once complete and verified.
+     *
+     * @return true if this attempt won and moved its file into place, false if another attempt already had
+     */
+    private boolean transfer(Attempt attempt, AtomicReference<Attempt> winner) throws IOException {
+        try {
+            return this.transferFrom(attempt, winner);
+        } catch (IOException e) {
+            if (!attempt.cancelled) {
+                this.downloader.mirrors().recordFailure(attempt.source);
+                this.downloader.concurrency().recordError();
+            }
+            throw e;
+        }
+    }
+
+    private boolean transferFrom(Attempt attempt, AtomicReference<Attempt> winner) throws IOException {
+        MessageDigest digest = this.sha1 == null ? null : sha1Digest();
+        Path part = attempt.part;
+        Files.createDirectories(this.destination.getParent());
+
+        long existing = attempt.resumable && Files.exists(part) ? Files.size(part) : 0L;
+        if (this.size > 0 && existing > this.size) {
+            Files.delete(part);
+            existing = 0L;
+        }
+        if (existing > 0 && digest != null) {
+            updateDigest(digest, part);
+        }
+
+        long written = existing;
+        Tee tee = null;
+        if (this.size <= 0 || existing < this.size) {
+            long requested = System.nanoTime();
+            URLConnection connection = this.downloader.open(attempt.source);
+            if (existing > 0) {
+                connection.setRequestProperty("Range", "bytes=" + existing + "-");
+            }
+            boolean append = false;
+            if (connection instanceof HttpURLConnection) {
+                int code = ((HttpURLConnection) connection).getResponseCode();
+                requested = System.nanoTime() - requested;
+                attempt.responded.complete(null);
+                this.downloader.recordFirstByte(TimeUnit.NANOSECONDS.toMillis(requested));
+                if (code == HttpURLConnection.HTTP_PARTIAL && existing > 0 && isRangeFrom(connection, existing)) {
+                    append = true;
+                    CleanroomRelauncher.LOGGER.debug("Resuming {} from byte {}", attempt.source, existing);
+                } else if (code == 416) {
+                    Files.deleteIfExists(part);
+                    throw new IOException("Requested range not satisfiable, discarding partial download");
+                } else if (code != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("HTTP error code " + code);
+                }
+            } else {
+                // file: and jar: sources ignore the range and always start from the first byte
+                requested = System.nanoTime() - requested;
+            }
+            if (!append) {
+                written = 0L;
+                if (digest != null) {
+                    digest.reset();
+                }
+            }
+            OpenOption[] options = append ?
+                    new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.WRITE } :
+                    new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE };
+            long start = System.nanoTime();
+            if (attempt.resumable) {
+                this.tracked.restart(written);
+            }
+            TransferMonitor monitor = this.downloader.monitor(attempt, this.tracked, this.size > 0 ? this.size - written : -1L);
+            // A hedge or a resumed transfer never sees the whole file from its first byte
+            tee = this.consumer != null && attempt.resumable && !append ? new Tee(this.consumer) : null;
+            try (ReadableByteChannel source = Channels.newChannel(connection.getInputStream()); FileChannel target = FileChannel.open(part, options)) {
+                written += copy(source, target, written, digest, monitor, tee);
+            } catch (IOException e) {
+                if (tee != null) {
+                    tee.abort();
+                }
+                if (attempt.cancelled) {
+                    // Only ever cancelled once another attempt has won
+                    Files.deleteIfExists(part);
+                    return false;
+                }
+                throw e;
+            }
+            long elapsedMs = Math.max(1L, (System.nanoTime() - start) / 1_000_000L);
+            this.downloader.mirrors().recordSuccess(attempt.source, TimeUnit.NANOSECONDS.toMillis(requested), written - existing, elapsedMs);
+            CleanroomRelauncher.LOGGER.debug("Transferred {} bytes of {} in {}ms ({} KiB/s)", written - existing, attempt.source, elapsedMs, (written - existing) * 1000L / 1024L / elapsedMs);
+        }
+
+        // Settled before anything is verified, a consumer that is still reading must not outlive its attempt
+        boolean consumed = tee != null && tee.finish();
+        if (this.size > 0 && written != this.size) {
+            if (written > this.size || !attempt.resumable) {
+                Files.deleteIfExists(part);
+            }
+            throw new IOException(String.format("Size mismatch, expected %d bytes but received %d", this.size, written));
+        }
+        if (digest != null) {
+            String actual = Hex.encodeHexString(digest.digest());
+            if (!actual.equalsIgnoreCase(this.sha1)) {
+                Files.deleteIfExists(part);
+                throw new IOException(String.format("SHA-1 mismatch, expected %s but received %s", this.sha1, actual));
+            }
+        }
+        if (!winner.compareAndSet(null, attempt)) {
+            Files.deleteIfExists(part);
+            return false;
+        }
+        AtomicFiles.move(part, this.destination);
+        if (consumed) {
+            this.consumer.verified();
+        }
+        CleanroomRelauncher.LOGGER.debug("Downloaded {} to {}", attempt.source, this.destination.toAbsolutePath());
+        return true;
+    }
+
+    /**
+     * Splits the file into byte ranges that are fetched in parallel and written into one preallocated .chunks.part file.
+     * A failed range is retried from where it stopped, the file is only discarded once a range ran out of attempts.
+     * It is never resumed, unlike the .part file of a single stream it has its full length from the start.
+     * A consumer reads the file in order while it is being fetched, each byte as soon as the range holding it got that far.
+     *
+     * @param chunks how many ranges to split the file into
+     * @param executor where the ranges are fetched
+     * @return false if the server does not support ranges, in which case nothing was written
+     */
+    boolean runChunked(int chunks, Executor executor) throws IOException {
+        URL source = this.downloader.mirrors().candidates(this.url, this.size).get(0);
+        URLConnection probe = this.downloader.open(source);
+        if (!(probe instanceof HttpURLConnection)) {
+            return false;
+        }
+        HttpURLConnection head = (HttpURLConnection) probe;
+        head.setRequestMethod("HEAD");
+        long length;
+        URL resolved;
+        try {
+            int code;
+            try {
+                code = head.getResponseCode();
+            } catch (IOException e) {
+                this.downloader.mirrors().recordFailure(source);
+                throw e;
+            }
+            if (code != HttpURLConnection.HTTP_OK || !"bytes".equalsIgnoreCase(head.getHeaderField("Accept-Ranges"))) {
+                return false;
+            }
+            length = head.getContentLengthLong();
+            // Redirects were followed, fetch every range from where the file actually lives
+            resolved = head.getURL();
+        } finally {
+            head.disconnect();
+        }
+        if (length <= 0 || (this.size > 0 && length != this.size)) {
+            return false;
+        }
+        chunks = (int) Math.max(1, Math.min(chunks, length / MIN_CHUNK_SIZE));
+        if (chunks < 2) {
+            return false;
+        }
+
+        Path part = this.destination.resolveSibling(this.destination.getFileName() + ".chunks.part");
+        Files.createDirectories(this.destination.getParent());
+        boolean completed = false;
+        boolean consumed = false;
+        try (RandomAccessFile file = new RandomAccessFile(part.toFile(), "rw")) {
+            file.setLength(length);
+            FileChannel channel = file.getChannel();
+            long chunkSize = (length + chunks - 1) / chunks;
+            List<Range> ranges = new ArrayList<>();
+            for (long start = 0; start < length; start += chunkSize) {
+                ranges.add(new Range(start, Math.min(length, start + chunkSize) - 1));
+            }
+            RangedStream stream = this.consumer == null ? null : new RangedStream(this.consumer, channel, ranges, chunkSize, length);
+            List<CompletableFuture<Void>> fetching = new ArrayList<>();
+            for (Range range : ranges) {
+                fetching.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        this.fetchRange(resolved, channel, range, stream);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor));
+            }
+            try {
+                CompletableFuture.allOf(fetching.toArray(new CompletableFuture<?>[0])).join();
+            } catch (CompletionException e) {
+                if (stream != null) {
+                    stream.abort();
+                }
+                throw new IOException("Unable to fetch all ranges of " + this.url, e.getCause());
+            }
+            channel.force(false);
+            // Settled before the channel closes, the consumer reads from it
+            consumed = stream != null && stream.finish();
+            completed = true;
+        } finally {
+            if (!completed) {
+                Files.deleteIfExists(part);
+            }
+        }
+
+        if (this.sha1 != null) {
+            MessageDigest digest = sha1Digest();
+            updateDigest(digest, part);
+            String actual = Hex.encodeHexString(digest.digest());
+            if (!actual.equalsIgnoreCase(this.sha1)) {
+                Files.deleteIfExists(part);
+                throw new IOException(String.format("SHA-1 mismatch, expected %s but received %s", this.sha1, actual));
+            }
+            AtomicFiles.move(part, this.destination);
+            VerificationIndex.INSTANCE.record(this.destination, this.sha1);
+        } else {
+            AtomicFiles.move(part, this.destination);
+        }
+        if (consumed) {
+            this.consumer.verified();
+        }
+        CleanroomRelauncher.LOGGER.debug("Downloaded {} to {} in {} ranges", this.url, this.destination.toAbsolutePath(), chunks);
+        return true;
+    }
+
+    private void fetchRange(URL url, FileChannel channel, Range range, RangedStream stream) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                this.fetchRemaining(url, channel, range, stream);
+                return;
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                CleanroomRelauncher.LOGGER.warn("Attempt {}/{} to download range {}-{} of {} failed at byte {}: {}", attempt, MAX_ATTEMPTS, range.from, range.to, this.url, range.position, e.getMessage());
+            }
+        }
+    }
+
+    private void fetchRemaining(URL url, FileChannel channel, Range range, RangedStream stream) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) this.downloader.open(url);
+        connection.setRequestProperty("Range", "bytes=" + range.position + "-" + range.to);
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL || !isRangeFrom(connection, range.position)) {
+            throw new IOException("Server did not honour range request, HTTP code " + connection.getResponseCode());
+        }
+        TransferMonitor monitor = this.downloader.monitor(null, this.tracked, range.to - range.position + 1);
+        ByteBuffer buffer = BUFFERS.get();
+        try (ReadableByteChannel source = Channels.newChannel(connection.getInputStream())) {
+            buffer.clear();
+            int read;
+            while (range.position <= range.to && (read = source.read(buffer)) != -1) {
+                monitor.update(read);
+                buffer.flip();
+                if (buffer.remaining() > range.to - range.position + 1) {
+                    buffer.limit((int) (range.to - range.position + 1));
+                }
+                while (buffer.hasRemaining()) {
+                    range.position += channel.write(buffer, range.position);
+                }
+                if (stream != null) {
+                    stream.advanced();
+                }
+                buffer.clear();
+            }
+        }
+        if (range.position != range.to + 1) {
+            throw new IOException(String.format("Range %d-%d ended early at byte %d", range.from, range.to, range.position));
+        }
+    }
+
+    private static boolean isRangeFrom(URLConnection connection, long start) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        return contentRange != null && contentRange.startsWith("bytes " + start + "-");
+    }
+
+    /**
+     * Copies everything from the source into the target starting at the given position. The bytes travel through this
+     * thread's pooled direct buffer, so no buffers are allocated per download. From a socket stream this is faster than
+     * {@link FileChannel#transferFrom}, which copies through a temporary buffer of 8 KiB at a time.
+     *
+     * @return bytes written
+     */
+    static long copy(ReadableByteChannel source, FileChannel target, long position, MessageDigest digest, TransferMonitor monitor) throws IOException {
+        return copy(source, target, position, digest, monitor, null);
+    }
+
+    private static long copy(ReadableByteChannel source, FileChannel target, long position, MessageDigest digest, TransferMonitor monitor, Tee tee) throws IOException {
+        long written = 0L;
+        ByteBuffer buffer = BUFFERS.get();
+        buffer.clear();
+        int read;
+        while ((read = source.read(buffer)) != -1) {
+            monitor.update(read);
+            buffer.flip();
+            buffer.mark();
+            if (digest != null) {
+                digest.update(buffer);
+                buffer.reset();
+            }
+            if (tee != null) {
+                tee.write(buffer);
+                buffer.reset();
+            }
+            while (buffer.hasRemaining()) {
+                written += target.write(buffer, position + written);
+            }
+            buffer.clear();
+        }
+        return written;
+    }
+
+    private static void updateDigest(MessageDigest digest, Path file) throws IOException {
+        ByteBuffer buffer = BUFFERS.get();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    private static MessageDigest sha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported by this JVM", e);
+        }
+    }
+
+    /**
+     * Hands a copy of the transferred bytes to a {@link StreamConsumer} over a bounded pipe. The consumer runs on a thread of
+     * its own and can only ever slow the transfer down to its own pace, once it fails or stops reading it is cut off.
+     */
+    private static final class Tee {
+
+        private static final int PIPE_SIZE = 256 * 1024;
+
+        private final PipedOutputStream out;
+        private final CompletableFuture<Void> consumed;
+        private final byte[] bytes = new byte[64 * 1024];
+
+        private boolean broken;
+
+        private Tee(StreamConsumer consumer) throws IOException {
+            PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+            this.out = new PipedOutputStream(in);
+            this.consumed = CompletableFuture.runAsync(() -> {
+                try (InputStream stream = in) {
+                    consumer.consume(stream);
+                    // Drained, the transfer must never block on a pipe nobody reads
+                    byte[] skipped = new byte[8192];
+                    while (stream.read(skipped) != -1) { }
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, Workers.STREAMS);
+        }
+
+        private void write(ByteBuffer buffer) {
+            if (this.broken) {
+                return;
+            }
+            try {
+                while (buffer.hasRemaining()) {
+                    int length = Math.min(buffer.remaining(), this.bytes.length);
+                    buffer.get(this.bytes, 0, length);
+                    this.out.write(this.bytes, 0, length);
+                }
+            } catch (IOException e) {
+                // The consumer gave up, the transfer itself carries on
+                this.broken = true;
+            }
+        }
+
+        /**
+         * @return true if the consumer read the whole stream without failing
+         */
+        private boolean finish() {
+            try {
+                this.out.close();
+                this.consumed.join();
+                return !this.broken;
+            } catch (IOException | CompletionException e) {
+                CleanroomRelauncher.LOGGER.debug("Streamed consumer failed, it will not be used", e);
+                return false;
+            }
+        }
+
+        private void abort() {
+            this.broken = true;
+            try {
+                this.out.close();
+                // Waited for, so that it never overlaps with the consumer of the next attempt
+                this.consumed.handle(($, t) -> null).join();
+            } catch (IOException ignored) { }
+        }
+
+    }
+
+    /**
+     * Hands the file of a ranged download to a {@link StreamConsumer} in order, reading each byte back from the file once
+     * the range holding it has been written that far. The consumer runs on a thread of its own and never slows the ranges
+     * down, it only ever waits for them.
+     */
+    private static final class RangedStream extends InputStream {
+
+        private final FileChannel channel;
+        private final List<Range> ranges;
+        private final long rangeSize, length;
+        private final CompletableFuture<Void> consumed;
+
+        private long position;
+        private volatile boolean failed;
+
+        private RangedStream(StreamConsumer consumer, FileChannel channel, List<Range> ranges, long rangeSize, long length) {
+            this.channel = channel;
+            this.ranges = ranges;
+            this.rangeSize = rangeSize;
+            this.length = length;
+            this.consumed = CompletableFuture.runAsync(() -> {
+                try (InputStream stream = new BufferedInputStream(this, 64 * 1024)) {
+                    consumer.consume(stream);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, Workers.STREAMS);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return this.read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (this.position >= this.length) {
+                return -1;
+            }
+            Range range = this.ranges.get((int) (this.position / this.rangeSize));
+            long available;
+            synchronized (this) {
+                while ((available = range.position - this.position) <= 0) {
+                    if (this.failed) {
+                        throw new IOException("The ranged download failed");
+                    }
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            int read = this.channel.read(ByteBuffer.wrap(bytes, offset, (int) Math.min(length, available)), this.position);
+            if (read <= 0) {
+                throw new EOFException("Unable to read back byte " + this.position);
+            }
+            this.position += read;
+            return read;
+        }
+
+        private synchronized void advanced() {
+            this.notifyAll();
+        }
+
+        /**
+         * @return true if the consumer read the whole stream without failing
+         */
+        private boolean finish() {
+            try {
+                this.consumed.join();
+                return true;
+            } catch (CompletionException e) {
+                CleanroomRelauncher.LOGGER.debug("Streamed consumer failed, it will not be used", e);
+                return false;
+            }
+        }
+
+        private void abort() {
+            synchronized (this) {
+                this.failed = true;
+                this.notifyAll();
+            }
+            this.consumed.handle(($, t) -> null).join();
+        }
+
+    }
+
+    /**
+     * Bytes of a file fetched by one range request, retries continue at the position the last one reached.
+     */
+    private static final class Range {
+
+        private final long from, to;
+        // Read by the consumer of a ranged stream while the range is still being fetched
+        private volatile long position;
+
+        private Range(long from, long to) {
+            this.from = from;
+            this.to = to;
+            this.position = from;
+        }
+
+    }
+
+    /**
+     * One request for the file, possibly racing against a hedged duplicate.
+     */
+    static final class Attempt {
+
+        private final URL source;
+        private final Path part;
+        private final boolean resumable;
+        private final CompletableFuture<Void> responded = new CompletableFuture<>();
+
+        private volatile boolean cancelled;
+
+        private Attempt(URL source, Path part, boolean resumable) {
+            this.source = source;
+            this.part = part;
+            this.resumable = resumable;
+        }
+
+        boolean isCancelled() {
+            return this.cancelled;
+        }
+
+        void cancel() {
+            // Noticed by the transfer's monitor on its next read, the read timeout bounds how long that can take
+            this.cancelled = true;
+        }
+
+    }
+
+    /**
+     * Fails a transfer that was cancelled, ran past its deadline or whose throughput stalled. It is only asked whenever a
+     * read returns, a connection that went silent altogether is failed by the read timeout, which never exceeds the stall
+     * window.
+     */
+    static final class TransferMonitor {
+
+        private final Attempt attempt;
+        private final AdaptiveConcurrency concurrency;
+        private final ProgressTracker.Tracked tracked;
+        private final long deadline;
+        private final long stallWindowNanos;
+        private final long stallMinimumBytes;
+
+        private long windowStart = System.nanoTime();
+        private long windowBytes;
+
+        TransferMonitor(Attempt attempt, AdaptiveConcurrency concurrency, ProgressTracker.Tracked tracked, long deadlineMillis, long stallWindowMillis, long stallMinimumBytes) {
+            this.attempt = attempt;
+            this.concurrency = concurrency;
+            this.tracked = tracked;
+            this.deadline = deadlineMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis) : Long.MAX_VALUE;
+            this.stallWindowNanos = TimeUnit.MILLISECONDS.toNanos(stallWindowMillis);
+            this.stallMinimumBytes = stallMinimumBytes;
+        }
+
+        void update(long bytes) throws IOException {
+            if (this.attempt != null && this.attempt.isCancelled()) {
+                throw new InterruptedIOException("Transfer was cancelled");
+            }
+            this.concurrency.recordBytes(bytes);
+            this.tracked.add(bytes);
+            long now = System.nanoTime();
+            if (now - this.deadline > 0) {
+                throw new InterruptedIOException("Transfer ran past its deadline");
+            }
+            this.windowBytes += bytes;
+            if (this.stallWindowNanos > 0 && now - this.windowStart >= this.stallWindowNanos) {
+                if (this.windowBytes < this.stallMinimumBytes) {
+                    throw new InterruptedIOException(String.format("Transfer stalled, only %d bytes arrived in the last %dms",
+                            this.windowBytes, TimeUnit.NANOSECONDS.toMillis(now - this.windowStart)));
+                }
+                this.windowStart = now;
+                this.windowBytes = 0L;
+            }
+        }
+
+    }
+
+}
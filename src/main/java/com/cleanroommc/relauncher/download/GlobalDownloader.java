@@ -1,71 +1,560 @@
 package com.cleanroommc.relauncher.download;
 
 import com.cleanroommc.relauncher.CleanroomRelauncher;
-import org.apache.commons.io.FileUtils;
+import com.cleanroommc.relauncher.config.RelauncherConfiguration;
+import com.cleanroommc.relauncher.download.cache.CacheLock;
+import com.cleanroommc.relauncher.download.cache.VerificationIndex;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.ForkJoinTask;
-import java.util.concurrent.Future;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class GlobalDownloader {
 
-    public static final GlobalDownloader INSTANCE = new GlobalDownloader();
+    public static final GlobalDownloader INSTANCE = new GlobalDownloader(CleanroomRelauncher.CONFIG);
 
-    private final List<ForkJoinTask> downloads = new ArrayList<>();
+    private static final long CHUNKED_THRESHOLD = 8L * 1024 * 1024;
+    private static final long STALL_MINIMUM_BYTES = 4 * 1024;
+    private static final long DEADLINE_MINIMUM_RATE = 64 * 1024;
+    private static final int HEDGE_MINIMUM_SAMPLES = 20;
+    private static final long HEDGE_MINIMUM_DELAY = 1000L;
+    private static final long PROGRESS_INTERVAL = 250L;
+    private static final String PROBE_URL = "https://api.github.com/";
+    private static final int PROBE_TIMEOUT = 2000;
 
-    public void from(String source, File destination) {
-        URI uri;
-        URL url;
-        try {
-            uri = URI.create(source);
-            url = uri.toURL();
-        } catch (MalformedURLException e) {
-            throw new RuntimeException(String.format("Unable to construct url %s", source), e);
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentSkipListSet<QueuedDownload> queue = new ConcurrentSkipListSet<>();
+    private final AtomicInteger dispatchRequests = new AtomicInteger();
+    private final int permitsPerHost;
+    private final int chunks;
+    private final Executor chunkExecutor;
+    private final int connectTimeout, readTimeout;
+    private final long deadline, stallWindow;
+    private final boolean hedging;
+    private final long[] firstBytes = new long[128];
+    private int firstByteCount;
+    private final MirrorSelector mirrors;
+    private final AdaptiveConcurrency concurrency;
+    private final ProgressTracker progress = new ProgressTracker();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService hedgeExecutor;
+    private final ExecutorService rangedExecutor;
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Queue<CompletableFuture<Void>> downloads = new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<Path, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger deduplicated = new AtomicInteger();
+    private final Queue<File> missing = new ConcurrentLinkedQueue<>();
+    private volatile Boolean offline;
+
+    GlobalDownloader(RelauncherConfiguration config) {
+        int threads = Math.max(1, config.getDownloadThreads());
+        AtomicInteger threadIndex = new AtomicInteger();
+        // The pool is sized for the most downloads that may ever run at once, AdaptiveConcurrency decides how many actually do
+        this.executor = new ThreadPoolExecutor(threads, threads, 10L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "Relauncher Download #" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.permitsPerHost = Math.max(1, config.getDownloadsPerHost());
+        this.chunks = config.getDownloadChunks();
+        // Ranges of a file that is being waited on jump ahead of every queued download
+        this.chunkExecutor = runnable -> this.enqueue(new QueuedDownload(Long.MAX_VALUE, this.sequence.getAndIncrement(), null, runnable));
+        this.connectTimeout = (int) TimeUnit.SECONDS.toMillis(config.getDownloadConnectTimeout());
+        this.readTimeout = (int) TimeUnit.SECONDS.toMillis(config.getDownloadReadTimeout());
+        this.deadline = TimeUnit.SECONDS.toMillis(config.getDownloadDeadline());
+        this.stallWindow = TimeUnit.SECONDS.toMillis(config.getDownloadStallWindow());
+        this.hedging = config.isHedgingDownloads();
+        if (config.isOffline() || Boolean.getBoolean("cleanroom.relauncher.offline")) {
+            this.offline = true;
         }
-        this.downloads.add(ForkJoinPool.commonPool().submit(() -> {
-            try {
-                FileUtils.copyURLToFile(url, destination);
-                CleanroomRelauncher.LOGGER.debug("Downloaded {} to {}", uri.toString(), destination.getAbsolutePath());
-            } catch (IOException e) {
-                throw new RuntimeException(String.format("Unable to download %s to %s", url, destination), e);
+        this.mirrors = new MirrorSelector(config.getMirrors(), CleanroomRelauncher.CACHE_DIR.resolve("hosts.json"));
+        this.concurrency = new AdaptiveConcurrency(config.getDownloadConcurrency(), threads);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Relauncher Download Scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleAtFixedRate(() -> {
+            this.concurrency.sample(this.queue.size());
+            // The limit may have grown
+            this.dispatch();
+        }, 1L, 1L, TimeUnit.SECONDS);
+        this.scheduler.scheduleAtFixedRate(this.progress::publish, PROGRESS_INTERVAL, PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+        AtomicInteger hedgeIndex = new AtomicInteger();
+        // Bounded by the download slots, a hedge only ever runs in one of its own
+        this.hedgeExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Relauncher Hedged Download #" + hedgeIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger rangedIndex = new AtomicInteger();
+        // Only waits on its ranges, which take download slots of their own
+        this.rangedExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Relauncher Ranged Download #" + rangedIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Subscribes to progress of all downloads. Snapshots are coalesced and published at most every 250ms.
+     */
+    public void addListener(DownloadListener listener) {
+        this.progress.addListener(listener);
+    }
+
+    public void removeListener(DownloadListener listener) {
+        this.progress.removeListener(listener);
+    }
+
+    /**
+     * Whether downloads are disabled, either explicitly or because no host could be reached. The network is only probed
+     * the first time this is asked, which only happens when something is actually missing from the cache.
+     * Offline, every requested download fails immediately without opening a socket.
+     */
+    public boolean isOffline() {
+        Boolean offline = this.offline;
+        if (offline == null) {
+            synchronized (this) {
+                offline = this.offline;
+                if (offline == null) {
+                    this.offline = offline = !this.probe();
+                    if (offline) {
+                        CleanroomRelauncher.LOGGER.warn("No network connection detected, running offline from the cache.");
+                    }
+                }
             }
-        }));
+        }
+        return offline;
+    }
+
+    public CompletableFuture<Void> from(String source, File destination) {
+        return this.from(source, destination, null, -1L);
+    }
+
+    /**
+     * Queues a download, larger files are scheduled ahead of smaller ones.
+     *
+     * @param source url of the file to download
+     * @param destination where the file should be written to
+     * @param sha1 expected SHA-1 of the file, null if unknown
+     * @param size expected size of the file in bytes, -1 if unknown
+     * @return a future that completes once the file is in place and verified
+     */
+    public CompletableFuture<Void> from(String source, File destination, String sha1, long size) {
+        return this.from(source, destination, sha1, size, null);
+    }
+
+    /**
+     * Queues a download whose bytes are also handed to the consumer while they arrive. The consumer is never called if the
+     * download is deduplicated against one already queued, or if the file is fetched from a resumed partial download.
+     * Large files are fetched as parallel byte ranges like {@link #immediatelyFrom blocking downloads}, the consumer then
+     * reads them in order as the ranges come in.
+     */
+    public CompletableFuture<Void> from(String source, File destination, String sha1, long size, StreamConsumer consumer) {
+        CompletableFuture<Void> download = new CompletableFuture<>();
+        CompletableFuture<Void> existing = this.register(destination, sha1, download);
+        if (existing != null) {
+            return existing;
+        }
+        ProgressTracker.Tracked tracked = this.track(destination, size, download);
+        if (consumer != null && this.isRanged(size)) {
+            this.rangedExecutor.execute(() -> {
+                try {
+                    if (this.downloadRanged(source, destination, sha1, size, tracked, consumer)) {
+                        download.complete(null);
+                    } else {
+                        this.submit(source, destination, sha1, size, download, tracked, consumer);
+                    }
+                } catch (Throwable t) {
+                    download.completeExceptionally(t);
+                }
+            });
+        } else {
+            this.submit(source, destination, sha1, size, download, tracked, consumer);
+        }
+        this.downloads.add(download);
+        return download;
     }
 
     public void immediatelyFrom(String source, File destination) {
-        this.from(source, destination);
+        this.immediatelyFrom(source, destination, null, -1L);
+    }
+
+    /**
+     * Downloads a file while blocking the calling thread. Large files are fetched as parallel byte ranges
+     * when the server allows it, otherwise as a single stream.
+     */
+    public void immediatelyFrom(String source, File destination, String sha1, long size) {
+        CompletableFuture<Void> download = new CompletableFuture<>();
+        CompletableFuture<Void> existing = this.register(destination, sha1, download);
+        if (existing == null) {
+            ProgressTracker.Tracked tracked = this.track(destination, size, download);
+            boolean completed = this.isRanged(size) && this.downloadRanged(source, destination, sha1, size, tracked, null);
+            if (completed) {
+                download.complete(null);
+            } else {
+                this.submit(source, destination, sha1, size, download, tracked, null);
+            }
+        }
         try {
-            this.downloads.remove(this.downloads.size() - 1).get();
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException("Unable to complete download", e);
+            (existing == null ? download : existing).join();
+        } catch (CompletionException e) {
+            throw new RuntimeException("Unable to complete download", e.getCause());
         }
     }
 
     public void blockUntilFinished() {
-        int total = this.downloads.size();
+        if (!this.missing.isEmpty()) {
+            List<File> missing = new ArrayList<>(this.missing);
+            this.missing.clear();
+            throw new RuntimeException(String.format("Running offline and %d file(s) are missing from the cache: %s", missing.size(), missing));
+        }
         int completed = 0;
         int last = 0;
-        for (Future download : this.downloads) {
+        CompletableFuture<Void> download;
+        while ((download = this.downloads.peek()) != null) {
             try {
-                download.get();
+                download.join();
+                this.downloads.remove(download);
                 completed++;
+                int total = completed + this.downloads.size();
                 int percentage = (completed * 100) / total;
                 if (percentage % 10 == 0 && last != percentage) {
                     last = percentage;
-                    CleanroomRelauncher.LOGGER.info("Download Progress: {} / {} | {}% completed.", completed, total, percentage);
+                    CleanroomRelauncher.LOGGER.info("Download Progress: {} / {} | {}% completed | {} KiB/s over {} concurrent downloads.",
+                            completed, total, percentage, this.concurrency.throughput() / 1024, this.concurrency.limit());
                 }
-            } catch (InterruptedException | ExecutionException e) {
-                throw new RuntimeException("Unable to complete download", e);
+            } catch (CompletionException e) {
+                throw new RuntimeException("Unable to complete download", e.getCause());
+            }
+        }
+        int deduplicated = this.deduplicated.getAndSet(0);
+        if (deduplicated > 0) {
+            CleanroomRelauncher.LOGGER.info("{} duplicate download requests were merged into ones already in flight.", deduplicated);
+        }
+        this.mirrors.save();
+        this.progress.publish();
+        this.progress.reset();
+    }
+
+    private boolean isRanged(long size) {
+        return size >= CHUNKED_THRESHOLD && this.chunks > 1 && !this.isOffline();
+    }
+
+    /**
+     * @return false if the file has to be downloaded as a single stream instead
+     */
+    private boolean downloadRanged(String source, File destination, String sha1, long size, ProgressTracker.Tracked tracked, StreamConsumer consumer) {
+        try (CacheLock lock = CacheLock.forArtifact(destination.toPath())) {
+            return (lock.isContended() && isInPlace(destination, sha1, size)) ||
+                    new FileDownload(this, toUrl(source), destination, sha1, size, tracked, consumer).runChunked(this.chunks, this.chunkExecutor);
+        } catch (IOException e) {
+            CleanroomRelauncher.LOGGER.warn("Unable to download {} in ranges, falling back to a single stream.", source, e);
+            return false;
+        }
+    }
+
+    private ProgressTracker.Tracked track(File destination, long size, CompletableFuture<Void> download) {
+        ProgressTracker.Tracked tracked = this.progress.track(destination.getName(), size);
+        download.whenComplete(($, t) -> {
+            if (t == null) {
+                tracked.complete();
+            } else {
+                tracked.fail();
             }
+        });
+        return tracked;
+    }
+
+    URLConnection open(URL url) throws IOException {
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(this.connectTimeout);
+        // A read that never returns is never seen by the transfer's monitor, and can't be cut short from another thread
+        connection.setReadTimeout(this.stallWindow > 0 && (this.readTimeout <= 0 || this.stallWindow < this.readTimeout) ? (int) this.stallWindow : this.readTimeout);
+        return connection;
+    }
+
+    /**
+     * @param remaining bytes the transfer has to fetch, -1 if unknown. Every 64 KiB of them extend the configured deadline by
+     *                  a second, so large files on slow but steady connections are not cut off.
+     */
+    FileDownload.TransferMonitor monitor(FileDownload.Attempt attempt, ProgressTracker.Tracked tracked, long remaining) {
+        long deadline = this.deadline <= 0 || remaining <= 0 ? this.deadline : this.deadline + remaining * 1000L / DEADLINE_MINIMUM_RATE;
+        return new FileDownload.TransferMonitor(attempt, this.concurrency, tracked, deadline, this.stallWindow, STALL_MINIMUM_BYTES);
+    }
+
+    AdaptiveConcurrency concurrency() {
+        return this.concurrency;
+    }
+
+    MirrorSelector mirrors() {
+        return this.mirrors;
+    }
+
+    ScheduledExecutorService scheduler() {
+        return this.scheduler;
+    }
+
+    Executor hedgeExecutor() {
+        return this.hedgeExecutor;
+    }
+
+    /**
+     * Takes a slot and a permit of the source's host for a hedged request, the same a queued download runs with, without
+     * waiting for either.
+     *
+     * @return false if either is taken, the download is then not hedged
+     */
+    boolean tryAcquireHedge(URL source) {
+        if (!this.concurrency.tryAcquire()) {
+            return false;
+        }
+        if (!this.hostPermits(source).tryAcquire()) {
+            this.concurrency.release();
+            return false;
         }
+        return true;
+    }
+
+    void releaseHedge(URL source) {
+        this.hostPermits(source).release();
+        this.concurrency.release();
+        this.dispatch();
+    }
+
+    /**
+     * Records how long a server took to respond to a request, hedging is based on these. Unlike whole durations they
+     * don't depend on the size of the file.
+     */
+    void recordFirstByte(long millis) {
+        synchronized (this.firstBytes) {
+            this.firstBytes[this.firstByteCount++ % this.firstBytes.length] = millis;
+        }
+    }
+
+    /**
+     * Files large enough to be fetched in ranges are not hedged, duplicating them costs too much.
+     *
+     * @return how long to wait for a response before a hedged request is sent, or -1 if the download should not be hedged
+     */
+    long hedgeDelay(long size) {
+        if (!this.hedging || size >= CHUNKED_THRESHOLD) {
+            return -1L;
+        }
+        long[] samples;
+        synchronized (this.firstBytes) {
+            if (this.firstByteCount < HEDGE_MINIMUM_SAMPLES) {
+                return -1L;
+            }
+            samples = Arrays.copyOf(this.firstBytes, Math.min(this.firstByteCount, this.firstBytes.length));
+        }
+        Arrays.sort(samples);
+        long p95 = samples[(int) Math.ceil(samples.length * 0.95) - 1];
+        return Math.max(HEDGE_MINIMUM_DELAY, p95);
+    }
+
+    private static URL toUrl(String source) {
+        try {
+            return URI.create(source).toURL();
+        } catch (IllegalArgumentException | MalformedURLException e) {
+            throw new RuntimeException(String.format("Unable to construct url %s", source), e);
+        }
+    }
+
+    /**
+     * Registers a download for its destination, so identical requests share one transfer.
+     *
+     * @return the future of an identical download that is already in flight, or null if the given future was registered
+     */
+    private CompletableFuture<Void> register(File destination, String sha1, CompletableFuture<Void> future) {
+        Path key = destination.toPath().toAbsolutePath().normalize();
+        InFlight candidate = new InFlight(sha1, future);
+        InFlight existing = this.inFlight.putIfAbsent(key, candidate);
+        if (existing == null) {
+            // Failed downloads may be requested again
+            future.whenComplete(($, t) -> {
+                if (t != null) {
+                    this.inFlight.remove(key, candidate);
+                }
+            });
+            return null;
+        }
+        if (sha1 != null && existing.sha1 != null && !sha1.equalsIgnoreCase(existing.sha1)) {
+            CleanroomRelauncher.LOGGER.warn("{} was requested with SHA-1 {} while {} is already in flight, keeping the first request.", key, sha1, existing.sha1);
+        }
+        this.deduplicated.incrementAndGet();
+        return existing.future;
+    }
+
+    private boolean probe() {
+        for (URL url : this.mirrors.candidates(toUrl(PROBE_URL), -1L)) {
+            try {
+                // Through the same connection a download would use, so configured proxies are honoured
+                URLConnection connection = this.open(url);
+                connection.setConnectTimeout(Math.min(PROBE_TIMEOUT, this.connectTimeout));
+                connection.setReadTimeout(Math.min(PROBE_TIMEOUT, this.readTimeout));
+                if (connection instanceof HttpURLConnection) {
+                    HttpURLConnection head = (HttpURLConnection) connection;
+                    head.setRequestMethod("HEAD");
+                    try {
+                        // Any response at all means the host is reachable
+                        head.getResponseCode();
+                    } finally {
+                        head.disconnect();
+                    }
+                } else {
+                    connection.connect();
+                }
+                return true;
+            } catch (IOException e) {
+                CleanroomRelauncher.LOGGER.debug("Unable to reach {}", url.getHost(), e);
+            }
+        }
+        return false;
+    }
+
+    private void submit(String source, File destination, String sha1, long size, CompletableFuture<Void> future, ProgressTracker.Tracked tracked, StreamConsumer consumer) {
+        if (this.isOffline()) {
+            this.missing.add(destination);
+            future.completeExceptionally(new IOException(String.format("Running offline, %s is missing from the cache", destination)));
+            return;
+        }
+        URL url = toUrl(source);
+        FileDownload file = new FileDownload(this, url, destination, sha1, size, tracked, consumer);
+        this.enqueue(new QueuedDownload(size, this.sequence.getAndIncrement(), this.hostPermits(url), () -> {
+            // Locked only once it has a slot and its host a permit, so other instances are never kept waiting by a download that hasn't started
+            try (CacheLock lock = CacheLock.forArtifact(destination.toPath())) {
+                if (lock.isContended() && isInPlace(destination, sha1, size)) {
+                    // Another instance downloaded it while this one was waiting
+                    future.complete(null);
+                    return;
+                }
+                file.run();
+                future.complete(null);
+            } catch (Throwable t) {
+                future.completeExceptionally(new IOException(String.format("Unable to download %s to %s", url, destination), t));
+            }
+        }));
+    }
+
+    private Semaphore hostPermits(URL url) {
+        return this.hostPermits.computeIfAbsent(String.valueOf(url.getHost()), $ -> new Semaphore(this.permitsPerHost));
+    }
+
+    private void enqueue(QueuedDownload download) {
+        this.queue.add(download);
+        this.dispatch();
+    }
+
+    /**
+     * Starts queued downloads for as long as there are free slots. A download is only dequeued once it has its slot and a
+     * permit of its host, so the largest file waiting is always the next to start and downloads whose host is busy never
+     * hold a slot that a download from another host could use.
+     */
+    private void dispatch() {
+        // Only one thread dispatches at a time, requests made meanwhile make it go over the queue once more
+        if (this.dispatchRequests.getAndIncrement() != 0) {
+            return;
+        }
+        int requests = 1;
+        do {
+            this.startQueued();
+            requests = this.dispatchRequests.addAndGet(-requests);
+        } while (requests != 0);
+    }
+
+    private void startQueued() {
+        while (this.concurrency.tryAcquire()) {
+            QueuedDownload next = null;
+            for (QueuedDownload queued : this.queue) {
+                if (queued.permits == null || queued.permits.tryAcquire()) {
+                    next = queued;
+                    break;
+                }
+            }
+            if (next == null) {
+                this.concurrency.release();
+                return;
+            }
+            this.queue.remove(next);
+            QueuedDownload started = next;
+            this.executor.execute(() -> {
+                try {
+                    started.run();
+                } finally {
+                    if (started.permits != null) {
+                        started.permits.release();
+                    }
+                    this.concurrency.release();
+                    this.dispatch();
+                }
+            });
+        }
+    }
+
+    private static boolean isInPlace(File destination, String sha1, long size) {
+        if (sha1 != null) {
+            return VerificationIndex.INSTANCE.isVerified(destination.toPath(), sha1, size);
+        }
+        return destination.isFile() && (size <= 0 || destination.length() == size);
+    }
+
+    private static final class InFlight {
+
+        private final String sha1;
+        private final CompletableFuture<Void> future;
+
+        private InFlight(String sha1, CompletableFuture<Void> future) {
+            this.sha1 = sha1;
+            this.future = future;
+        }
+
+    }
+
+    private static final class QueuedDownload implements Runnable, Comparable<QueuedDownload> {
+
+        private final long size;
+        private final long sequence;
+        private final Semaphore permits;
+        private final Runnable runnable;
+
+        /**
+         * @param permits of the host the download is from, null if it needs none
+         */
+        private QueuedDownload(long size, long sequence, Semaphore permits, Runnable runnable) {
+            this.size = size;
+            this.sequence = sequence;
+            this.permits = permits;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            this.runnable.run();
+        }
+
+        @Override
+        public int compareTo(QueuedDownload other) {
+            int bySize = Long.compare(other.size, this.size);
+            return bySize != 0 ? bySize : Long.compare(this.sequence, other.sequence);
+        }
+
     }
 
 }
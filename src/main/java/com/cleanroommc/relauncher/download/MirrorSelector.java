@@ -0,0 +1,166 @@
+package com.cleanroommc.relauncher.download;
+
+import com.cleanroommc.relauncher.CleanroomRelauncher;
+import com.cleanroommc.relauncher.download.cache.CacheLock;
+import com.cleanroommc.relauncher.util.AtomicFiles;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps a source url onto its configured mirrors and ranks all of them by how fast each host has been so far.
+ * <p>
+ * Statistics are kept per host as moving averages and persisted, so a launch starts with last launch's ranking.
+ * Hosts that fail are considered unhealthy for a while and are only tried once every healthy one is exhausted.
+ */
+final class MirrorSelector {
+
+    private static final double SMOOTHING = 0.3;
+    private static final long BASE_PENALTY = 15_000L;
+    private static final long MAX_PENALTY = 10 * 60_000L;
+
+    private final Map<String, List<String>> mirrors;
+    private final Path file;
+    private final ConcurrentMap<String, HostStatistics> hosts = new ConcurrentHashMap<>();
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+
+    MirrorSelector(Map<String, List<String>> mirrors, Path file) {
+        this.mirrors = mirrors == null ? Collections.emptyMap() : mirrors;
+        this.file = file;
+        this.hosts.putAll(read(file));
+    }
+
+    private static Map<String, HostStatistics> read(Path file) {
+        if (Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file)) {
+                Map<String, HostStatistics> read = CleanroomRelauncher.GSON.fromJson(reader, new TypeToken<Map<String, HostStatistics>>() { }.getType());
+                if (read != null) {
+                    return read;
+                }
+            } catch (Throwable t) {
+                CleanroomRelauncher.LOGGER.warn("Unable to read host statistics, mirrors will be ranked from scratch.", t);
+            }
+        }
+        return new HashMap<>();
+    }
+
+    /**
+     * @param source the url as given in the version json or by GitHub
+     * @param size expected size of the file, used to weigh latency against throughput. 0 or below if unknown
+     * @return the source and its mirrors, fastest healthy host first
+     */
+    List<URL> candidates(URL source, long size) {
+        List<URL> candidates = new ArrayList<>();
+        String external = source.toExternalForm();
+        for (Map.Entry<String, List<String>> entry : this.mirrors.entrySet()) {
+            if (external.startsWith(entry.getKey())) {
+                String path = external.substring(entry.getKey().length());
+                for (String mirror : entry.getValue()) {
+                    try {
+                        candidates.add(new URL(mirror.endsWith("/") || path.isEmpty() ? mirror + path : mirror + "/" + path));
+                    } catch (MalformedURLException e) {
+                        CleanroomRelauncher.LOGGER.warn("Ignoring malformed mirror {}", mirror);
+                    }
+                }
+            }
+        }
+        candidates.add(source);
+        if (candidates.size() > 1) {
+            long now = System.currentTimeMillis();
+            // Stable, so configured mirrors are explored ahead of the original source until they have statistics
+            candidates.sort(Comparator.comparingDouble(url -> this.estimate(url, size, now)));
+        }
+        return candidates;
+    }
+
+    void recordSuccess(URL url, long latencyMillis, long bytes, long transferMillis) {
+        HostStatistics statistics = this.statistics(url);
+        synchronized (statistics) {
+            statistics.latency = statistics.samples == 0 ? latencyMillis : statistics.latency + SMOOTHING * (latencyMillis - statistics.latency);
+            if (bytes > 64 * 1024 && transferMillis > 0) {
+                double throughput = bytes * 1000.0 / transferMillis;
+                statistics.throughput = statistics.throughput <= 0 ? throughput : statistics.throughput + SMOOTHING * (throughput - statistics.throughput);
+            }
+            statistics.samples++;
+            statistics.failures = 0;
+            statistics.unhealthyUntil = 0L;
+        }
+    }
+
+    void recordFailure(URL url) {
+        HostStatistics statistics = this.statistics(url);
+        synchronized (statistics) {
+            statistics.failures++;
+            statistics.unhealthyUntil = System.currentTimeMillis() + Math.min(MAX_PENALTY, BASE_PENALTY << Math.min(10, statistics.failures - 1));
+        }
+    }
+
+    private HostStatistics statistics(URL url) {
+        String host = host(url);
+        this.changed.add(host);
+        return this.hosts.computeIfAbsent(host, $ -> new HostStatistics());
+    }
+
+    /**
+     * Merges the hosts this process measured into the file, statistics other instances saved for other hosts are kept.
+     */
+    void save() {
+        if (this.changed.isEmpty()) {
+            return;
+        }
+        try (CacheLock lock = CacheLock.acquire("hosts")) {
+            Map<String, HostStatistics> merged = read(this.file);
+            for (String host : this.changed) {
+                merged.put(host, this.hosts.get(host));
+            }
+            AtomicFiles.writeJson(this.file, merged);
+            this.changed.clear();
+        } catch (IOException e) {
+            CleanroomRelauncher.LOGGER.warn("Unable to save host statistics", e);
+        }
+    }
+
+    /**
+     * @return expected milliseconds to fetch a file of the given size from this url's host, unhealthy hosts rank last
+     */
+    private double estimate(URL url, long size, long now) {
+        HostStatistics statistics = this.hosts.get(host(url));
+        if (statistics == null) {
+            return 0;
+        }
+        synchronized (statistics) {
+            double estimate = statistics.latency;
+            if (size > 0 && statistics.throughput > 0) {
+                estimate += size * 1000.0 / statistics.throughput;
+            }
+            if (statistics.unhealthyUntil > now) {
+                estimate += Double.MAX_VALUE / 2;
+            }
+            return estimate;
+        }
+    }
+
+    private static String host(URL url) {
+        return url.getProtocol() + "://" + url.getAuthority();
+    }
+
+    private static class HostStatistics {
+
+        private double latency;
+        private double throughput;
+        private int samples;
+        // Failures from a previous launch say nothing about now
+        private transient int failures;
+        private transient long unhealthyUntil;
+
+    }
+
+}
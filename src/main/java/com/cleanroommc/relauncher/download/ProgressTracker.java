@@ -0,0 +1,151 @@
+package com.cleanroommc.relauncher.download;
+
+import com.cleanroommc.relauncher.CleanroomRelauncher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks byte-level progress of every download and publishes snapshots to listeners on a fixed cadence,
+ * so a burst of tiny transfers never turns into a burst of events.
+ */
+final class ProgressTracker {
+
+    private static final double SMOOTHING = 0.3;
+
+    private final Queue<Tracked> files = new ConcurrentLinkedQueue<>();
+    private final List<DownloadListener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong changes = new AtomicLong();
+
+    private long publishedChanges = -1L;
+    private long lastCompletedBytes;
+    private long lastPublish = System.nanoTime();
+    private double bytesPerSecond;
+
+    void addListener(DownloadListener listener) {
+        this.listeners.add(listener);
+    }
+
+    void removeListener(DownloadListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    Tracked track(String name, long size) {
+        Tracked tracked = new Tracked(name, size);
+        this.files.add(tracked);
+        this.changes.incrementAndGet();
+        return tracked;
+    }
+
+    /**
+     * Publishes a snapshot to all listeners if anything changed since the last one.
+     */
+    synchronized void publish() {
+        long changes = this.changes.get();
+        if (this.listeners.isEmpty() || changes == this.publishedChanges) {
+            return;
+        }
+        this.publishedChanges = changes;
+        DownloadProgress progress = this.snapshot();
+        for (DownloadListener listener : this.listeners) {
+            try {
+                listener.onProgress(progress);
+            } catch (Throwable t) {
+                CleanroomRelauncher.LOGGER.error("Download listener failed", t);
+            }
+        }
+    }
+
+    /**
+     * Forgets all finished downloads, called once the downloader is idle.
+     */
+    synchronized void reset() {
+        this.files.removeIf(tracked -> tracked.state == DownloadProgress.State.COMPLETED || tracked.state == DownloadProgress.State.FAILED);
+        this.lastCompletedBytes = 0L;
+        this.bytesPerSecond = 0;
+        this.changes.incrementAndGet();
+    }
+
+    private DownloadProgress snapshot() {
+        long totalBytes = 0L, completedBytes = 0L;
+        int totalFiles = 0, completedFiles = 0, failedFiles = 0;
+        List<DownloadProgress.FileState> states = new ArrayList<>();
+        for (Tracked tracked : this.files) {
+            DownloadProgress.FileState state = tracked.state();
+            states.add(state);
+            totalFiles++;
+            // Files of unknown size only count what has arrived so far
+            totalBytes += state.size > 0 ? state.size : state.transferred;
+            completedBytes += state.transferred;
+            if (state.state == DownloadProgress.State.COMPLETED) {
+                completedFiles++;
+            } else if (state.state == DownloadProgress.State.FAILED) {
+                failedFiles++;
+            }
+        }
+        long now = System.nanoTime();
+        double elapsed = Math.max(1L, now - this.lastPublish) / 1_000_000_000.0;
+        double current = Math.max(0L, completedBytes - this.lastCompletedBytes) / elapsed;
+        this.bytesPerSecond = this.bytesPerSecond <= 0 ? current : this.bytesPerSecond + SMOOTHING * (current - this.bytesPerSecond);
+        this.lastCompletedBytes = completedBytes;
+        this.lastPublish = now;
+        long eta = this.bytesPerSecond >= 1 ? (long) ((totalBytes - completedBytes) / this.bytesPerSecond) : -1L;
+        return new DownloadProgress(totalBytes, completedBytes, (long) this.bytesPerSecond, eta, totalFiles, completedFiles, failedFiles, states);
+    }
+
+    final class Tracked {
+
+        private final String name;
+        private final long size;
+        private final AtomicLong transferred = new AtomicLong();
+        private volatile DownloadProgress.State state = DownloadProgress.State.QUEUED;
+
+        private Tracked(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        /**
+         * A resumable transfer (re)starts at the given offset.
+         */
+        void restart(long offset) {
+            this.transferred.set(offset);
+            this.state = DownloadProgress.State.DOWNLOADING;
+            ProgressTracker.this.changes.incrementAndGet();
+        }
+
+        void add(long bytes) {
+            this.transferred.addAndGet(bytes);
+            this.state = DownloadProgress.State.DOWNLOADING;
+            ProgressTracker.this.changes.incrementAndGet();
+        }
+
+        void complete() {
+            if (this.size > 0) {
+                this.transferred.set(this.size);
+            }
+            this.state = DownloadProgress.State.COMPLETED;
+            ProgressTracker.this.changes.incrementAndGet();
+        }
+
+        void fail() {
+            this.state = DownloadProgress.State.FAILED;
+            ProgressTracker.this.changes.incrementAndGet();
+        }
+
+        private DownloadProgress.FileState state() {
+            long transferred = this.transferred.get();
+            // A hedged request is counted alongside the one it races
+            if (this.size > 0) {
+                transferred = Math.min(transferred, this.size);
+            }
+            return new DownloadProgress.FileState(this.name, this.size, transferred, this.state);
+        }
+
+    }
+
+}
@@ -0,0 +1,178 @@
+package com.cleanroommc.relauncher.download;
+
+import com.cleanroommc.relauncher.CleanroomRelauncher;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Releases of a paginated GitHub response, following its next links page by page. Only the fields
+ * {@link CleanroomRelease} keeps are read, release bodies, authors, reactions and uploaders are skipped without being
+ * materialized.
+ */
+final class ReleasePages {
+
+    private static final Pattern NEXT_LINK = Pattern.compile("<([^>]+)>\\s*;\\s*rel=\"next\"");
+
+    static HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) GlobalDownloader.INSTANCE.open(url);
+        connection.setRequestMethod("GET");
+        connection.setRequestProperty("Accept", "application/vnd.github.v3+json");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        return connection;
+    }
+
+    /**
+     * Reads a json array of releases, either a GitHub response page or the relauncher's own cache.
+     */
+    static List<CleanroomRelease> parse(Reader reader) throws IOException {
+        List<CleanroomRelease> releases = new ArrayList<>();
+        JsonReader json = new JsonReader(reader);
+        json.beginArray();
+        while (json.hasNext()) {
+            releases.add(readRelease(json));
+        }
+        json.endArray();
+        return releases;
+    }
+
+    private static CleanroomRelease readRelease(JsonReader json) throws IOException {
+        CleanroomRelease release = new CleanroomRelease();
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "name":
+                    release.name = nextString(json);
+                    break;
+                case "tag_name":
+                    release.tagName = nextString(json);
+                    break;
+                case "assets":
+                    release.assets = new ArrayList<>();
+                    json.beginArray();
+                    while (json.hasNext()) {
+                        release.assets.add(readAsset(json));
+                    }
+                    json.endArray();
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+        if (release.assets == null) {
+            release.assets = Collections.emptyList();
+        }
+        return release;
+    }
+
+    private static CleanroomRelease.Asset readAsset(JsonReader json) throws IOException {
+        CleanroomRelease.Asset asset = new CleanroomRelease.Asset();
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "name":
+                    asset.name = nextString(json);
+                    break;
+                case "browser_download_url":
+                    asset.downloadUrl = nextString(json);
+                    break;
+                case "size":
+                    asset.size = json.nextLong();
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+        return asset;
+    }
+
+    private static String nextString(JsonReader json) throws IOException {
+        if (json.peek() == JsonToken.NULL) {
+            json.nextNull();
+            return null;
+        }
+        return json.nextString();
+    }
+
+    private final List<CleanroomRelease> releases = new ArrayList<>();
+    private int pages;
+    private long parseNanos;
+
+    /**
+     * Fetches every page, following the next links from the first one.
+     *
+     * @param connection a connection to the first page which already responded with 200
+     */
+    ReleasePages(HttpURLConnection connection) throws IOException {
+        URL next = this.read(connection);
+        while (next != null) {
+            connection = open(next);
+            if (connection.getResponseCode() != 200) {
+                throw new IOException("Failed to fetch releases from " + next + ": HTTP error code " + connection.getResponseCode());
+            }
+            next = this.read(connection);
+        }
+    }
+
+    List<CleanroomRelease> releases() {
+        return this.releases;
+    }
+
+    int pages() {
+        return this.pages;
+    }
+
+    long parseMillis() {
+        return this.parseNanos / 1_000_000L;
+    }
+
+    /**
+     * @return the page after this one, or null if it was the last
+     */
+    private URL read(HttpURLConnection connection) throws IOException {
+        URL next = nextPage(connection);
+        InputStream stream = connection.getInputStream();
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            stream = new GZIPInputStream(stream);
+        }
+        byte[] page;
+        try (InputStream in = stream) {
+            page = IOUtils.toByteArray(in);
+        }
+        // Read into memory first, so only parsing is timed and not the transfer
+        long start = System.nanoTime();
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(page), StandardCharsets.UTF_8)) {
+            this.releases.addAll(parse(reader));
+        }
+        this.parseNanos += System.nanoTime() - start;
+        this.pages++;
+        return next;
+    }
+
+    private static URL nextPage(HttpURLConnection connection) throws IOException {
+        String link = connection.getHeaderField("Link");
+        if (link == null) {
+            return null;
+        }
+        Matcher matcher = NEXT_LINK.matcher(link);
+        return matcher.find() ? new URL(matcher.group(1)) : null;
+    }
+
+}
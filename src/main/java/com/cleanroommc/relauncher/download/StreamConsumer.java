@@ -0,0 +1,22 @@
+package com.cleanroommc.relauncher.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a download's bytes while they are still arriving, alongside the copy being written to disk.
+ * <p>
+ * Only a fresh transfer is teed, a resumed one starts mid-file and is never handed to the consumer. The consumer may be
+ * called once per attempt, it is told through {@link #verified()} once the bytes it last consumed in full were verified
+ * and moved into place. Anything it did before that must be treated as provisional.
+ */
+public interface StreamConsumer {
+
+    /**
+     * Called on a thread of its own. Bytes left unread once this returns are skipped, failures only affect the consumer.
+     */
+    void consume(InputStream stream) throws IOException;
+
+    void verified();
+
+}
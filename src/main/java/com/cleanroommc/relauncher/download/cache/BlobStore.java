@@ -0,0 +1,131 @@
+package com.cleanroommc.relauncher.download.cache;
+
+import com.cleanroommc.relauncher.CleanroomRelauncher;
+import com.cleanroommc.relauncher.util.AtomicFiles;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+
+/**
+ * Stores files by their SHA-1 and materializes them where they are expected as hardlinks, so a file shared by several
+ * releases, library layouts or users of one machine only takes up disk space once. Falls back to copying when the store
+ * and the target are on filesystems that can't link between each other.
+ * <p>
+ * Files must never be modified in place once stored, they are only ever replaced by moving a new file over them. The store
+ * may be shared with other users, so a blob is hashed before it is first linked and trusted through the
+ * {@link VerificationIndex} from then on.
+ */
+public final class BlobStore {
+
+    public static final BlobStore INSTANCE = new BlobStore(CleanroomRelauncher.CONFIG.getBlobStore() == null ?
+            CleanroomRelauncher.CACHE_DIR.resolve("blobs") :
+            Paths.get(CleanroomRelauncher.CONFIG.getBlobStore()));
+
+    private final Path directory;
+
+    private BlobStore(Path directory) {
+        this.directory = directory;
+    }
+
+    public Path blob(String sha1) {
+        String hash = sha1.toLowerCase(Locale.ROOT);
+        return this.directory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * Adds a verified file to the store, the file itself stays where it is.
+     */
+    public void store(Path file, String sha1) {
+        Path blob = this.blob(sha1);
+        // A blob that doesn't match its name is replaced
+        if (VerificationIndex.INSTANCE.isVerified(blob, sha1, -1L)) {
+            return;
+        }
+        try {
+            Files.createDirectories(blob.getParent());
+            Path temp = temp(blob);
+            try {
+                linkOrCopy(file, temp);
+                move(temp, blob);
+                VerificationIndex.INSTANCE.record(blob, sha1);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            CleanroomRelauncher.LOGGER.warn("Unable to store {} as {}", file, blob, e);
+        }
+    }
+
+    /**
+     * Moves a freshly written and hashed file into the store, or discards it if the store already has its content.
+     *
+     * @return the stored blob
+     */
+    public Path adopt(Path file, String sha1) throws IOException {
+        Path blob = this.blob(sha1);
+        if (VerificationIndex.INSTANCE.isVerified(blob, sha1, -1L)) {
+            Files.delete(file);
+        } else {
+            Files.createDirectories(blob.getParent());
+            move(file, blob);
+            VerificationIndex.INSTANCE.record(blob, sha1);
+        }
+        return blob;
+    }
+
+    /**
+     * Materializes a stored blob at the target, replacing anything already there.
+     *
+     * @param size expected size of the blob, 0 or below if unknown
+     * @return false if the store doesn't hold the blob or its content doesn't match its name
+     */
+    public boolean materialize(String sha1, long size, Path target) {
+        Path blob = this.blob(sha1);
+        try {
+            if (!VerificationIndex.INSTANCE.isVerified(blob, sha1, size)) {
+                return false;
+            }
+            Files.createDirectories(target.getParent());
+            Path temp = temp(target);
+            try {
+                linkOrCopy(blob, temp);
+                move(temp, target);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            return true;
+        } catch (IOException e) {
+            CleanroomRelauncher.LOGGER.warn("Unable to materialize {} at {}", blob, target, e);
+            return false;
+        }
+    }
+
+    private static Path temp(Path path) throws IOException {
+        // Unique across processes sharing the store
+        return Files.createTempFile(path.getParent(), path.getFileName().toString(), ".link");
+    }
+
+    private static void linkOrCopy(Path from, Path to) throws IOException {
+        Files.deleteIfExists(to);
+        try {
+            Files.createLink(to, from);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            AtomicFiles.move(from, to);
+        } catch (FileAlreadyExistsException e) {
+            // Another process stored the same content first
+            Files.deleteIfExists(from);
+        }
+    }
+
+}
@@ -0,0 +1,478 @@
+package com.cleanroommc.relauncher.download.cache;
+
+import com.cleanroommc.relauncher.CleanroomRelauncher;
+import com.cleanroommc.relauncher.util.AtomicFiles;
+import com.google.gson.reflect.TypeToken;
+import org.apache.logging.log4j.util.ProcessIdUtil;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the relauncher's cache under the configured size by evicting whatever was used least recently.
+ * <p>
+ * Release directories, libraries, natives directories and class data sharing archives are evicted individually, the blob
+ * store is then swept of content nothing links to anymore. Last access times are recorded whenever a release is launched,
+ * files that were never recorded fall back to their last modified time. Everything the current launch uses is never
+ * evicted, neither is anything another instance is writing or that would free no space because it is linked from
+ * outside of the cache.
+ * <p>
+ * Running instances {@link #markInUse mark} what their launch uses, and instances that are still preparing theirs
+ * {@link #holdOff hold off} collection altogether.
+ */
+public final class CacheCollector {
+
+    private static final List<String> IN_PROGRESS_SUFFIXES = Arrays.asList(".part", ".link", ".import", ".extract", ".stream", AtomicFiles.TEMP_SUFFIX);
+    private static final Set<String> SHARED_DIRECTORIES = new HashSet<>(Arrays.asList("libraries", "natives", "blobs", "wrapper", "locks", "cds"));
+    private static final String COLLECT_LOCK = "collect";
+    private static final String IN_USE_PREFIX = "use-";
+
+    /**
+     * Keeps every instance from collecting the cache until the returned lock is released, held while a launch is prepared.
+     */
+    public static CacheLock holdOff() throws IOException {
+        return CacheLock.share(COLLECT_LOCK);
+    }
+
+    /**
+     * Records what the current launch uses, other instances leave it alone for as long as the returned lock is held.
+     *
+     * @param used further files the current launch uses
+     */
+    public static CacheLock markInUse(CleanroomCache cache, LaunchPlan plan, Path... used) throws IOException {
+        String name = IN_USE_PREFIX + ProcessIdUtil.getProcessId();
+        CacheLock lock = CacheLock.acquire(name);
+        try {
+            List<String> paths = used(cache, plan, Arrays.asList(used)).stream().map(Path::toString).collect(Collectors.toList());
+            AtomicFiles.writeJson(CleanroomRelauncher.CACHE_DIR.resolve("locks").resolve(name + ".json"), paths);
+            return lock;
+        } catch (IOException | RuntimeException e) {
+            lock.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Records the current launch and collects the cache on a background thread.
+     *
+     * @param used further files the current launch uses
+     */
+    public static void collectInBackground(CleanroomCache cache, LaunchPlan plan, Path... used) {
+        Thread thread = new Thread(() -> {
+            try {
+                new CacheCollector(CleanroomRelauncher.CACHE_DIR).collect(cache, plan, Arrays.asList(used), CleanroomRelauncher.CONFIG.getCacheSizeLimit() * 1024L * 1024L);
+            } catch (Throwable t) {
+                CleanroomRelauncher.LOGGER.warn("Unable to collect the relauncher cache", t);
+            }
+        }, "Relauncher Cache Collector");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private final Path directory;
+    private final Path accessFile;
+    private final Map<String, Long> accessed = new HashMap<>();
+
+    private CacheCollector(Path directory) {
+        this.directory = directory.toAbsolutePath().normalize();
+        this.accessFile = directory.resolve("access.json");
+        this.accessed.putAll(readAccess(this.accessFile));
+    }
+
+    private static Map<String, Long> readAccess(Path file) {
+        if (Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file)) {
+                Map<String, Long> read = CleanroomRelauncher.GSON.fromJson(reader, new TypeToken<Map<String, Long>>() { }.getType());
+                if (read != null) {
+                    return read;
+                }
+            } catch (Throwable t) {
+                CleanroomRelauncher.LOGGER.warn("Unable to read access.json, falling back to modification times.", t);
+            }
+        }
+        return new HashMap<>();
+    }
+
+    private void collect(CleanroomCache cache, LaunchPlan plan, List<Path> used, long limit) throws IOException {
+        Set<Path> protectedPaths = used(cache, plan, used);
+        long now = System.currentTimeMillis();
+        for (Path path : protectedPaths) {
+            this.accessed.put(this.key(path), now);
+        }
+
+        if (limit > 0) {
+            try (CacheLock lock = CacheLock.tryAcquire(COLLECT_LOCK)) {
+                if (lock == null) {
+                    CleanroomRelauncher.LOGGER.info("Another instance is preparing its launch, leaving the cache to be collected later.");
+                } else if (this.protectInUse(protectedPaths)) {
+                    long start = System.nanoTime();
+                    Contents contents = new Contents();
+                    contents.walk(this.directory);
+                    if (contents.size() > limit) {
+                        this.evict(contents, protectedPaths, limit);
+                    }
+                    CleanroomRelauncher.LOGGER.debug("Collected the relauncher cache in {}ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+            }
+        }
+
+        // Merged with what instances that launched in the meantime recorded, the latest access wins
+        try (CacheLock lock = CacheLock.acquire("access")) {
+            Map<String, Long> merged = readAccess(this.accessFile);
+            this.accessed.forEach((key, accessed) -> merged.merge(key, accessed, Math::max));
+            // Forget files that are gone
+            merged.keySet().removeIf(key -> !Files.exists(this.directory.resolve(key)));
+            AtomicFiles.writeJson(this.accessFile, merged);
+        }
+    }
+
+    /**
+     * @return the release directory, libraries, natives and further files of a launch
+     */
+    private static Set<Path> used(CleanroomCache cache, LaunchPlan plan, List<Path> further) {
+        Set<Path> used = new HashSet<>();
+        used.add(cache.getDirectory().toAbsolutePath().normalize());
+        for (String entry : plan.getClassPath()) {
+            used.add(Paths.get(entry).toAbsolutePath().normalize());
+        }
+        for (String entry : plan.getNativesPaths()) {
+            used.add(Paths.get(entry).toAbsolutePath().normalize());
+        }
+        for (Path path : further) {
+            used.add(path.toAbsolutePath().normalize());
+        }
+        return used;
+    }
+
+    /**
+     * Adds what other running instances marked in use, and forgets the marks of instances that have exited.
+     *
+     * @return false if a mark can't be read, the cache is then left as it is
+     */
+    private boolean protectInUse(Set<Path> protectedPaths) throws IOException {
+        Path locks = this.directory.resolve("locks");
+        if (!Files.isDirectory(locks)) {
+            return true;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(locks, IN_USE_PREFIX + "*.json")) {
+            for (Path mark : stream) {
+                String name = mark.getFileName().toString();
+                try (CacheLock lock = CacheLock.tryAcquire(name.substring(0, name.length() - ".json".length()))) {
+                    if (lock != null) {
+                        Files.deleteIfExists(mark);
+                        continue;
+                    }
+                }
+                List<String> paths;
+                try (Reader reader = Files.newBufferedReader(mark)) {
+                    paths = CleanroomRelauncher.GSON.fromJson(reader, new TypeToken<List<String>>() { }.getType());
+                } catch (Throwable t) {
+                    CleanroomRelauncher.LOGGER.warn("Unable to read what another instance uses from {}, leaving the cache as it is.", mark, t);
+                    return false;
+                }
+                if (paths != null) {
+                    for (String path : paths) {
+                        protectedPaths.add(Paths.get(path).toAbsolutePath().normalize());
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private void evict(Contents contents, Set<Path> protectedPaths, long limit) throws IOException {
+        List<Path> units = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, Files::isDirectory)) {
+            for (Path path : stream) {
+                if (!SHARED_DIRECTORIES.contains(path.getFileName().toString())) {
+                    units.add(path);
+                }
+            }
+        }
+        for (String shared : Arrays.asList("libraries", "cds")) {
+            units.addAll(files(this.directory.resolve(shared)));
+        }
+        this.nativesUnits(this.directory.resolve("natives"), units);
+        units.removeIf(unit -> protectedPaths.stream().anyMatch(path -> path.startsWith(unit) || unit.startsWith(path)));
+        // Blobs nothing links to anymore are evicted like any other entry
+        units.addAll(contents.orphanedBlobs());
+        Map<Path, Long> lastAccess = new HashMap<>();
+        for (Path unit : units) {
+            lastAccess.put(unit, this.lastAccess(unit));
+        }
+        units.sort(Comparator.comparing(lastAccess::get));
+
+        long before = contents.size();
+        int evicted = 0;
+        for (Path unit : units) {
+            if (contents.size() <= limit) {
+                break;
+            }
+            if (this.evict(unit, contents)) {
+                evicted++;
+            }
+        }
+        CleanroomRelauncher.LOGGER.info("Evicted {} least recently used cache entries, freeing {} MiB.", evicted, (before - contents.size()) / (1024 * 1024));
+        if (contents.size() > limit) {
+            CleanroomRelauncher.LOGGER.info("The cache is still {} MiB over its limit, the rest is in use, being written or linked from outside of the cache.",
+                    (contents.size() - limit) / (1024 * 1024));
+        }
+    }
+
+    /**
+     * Natives are evicted a whole directory at a time together with their stamp, files outside of a stamped directory are
+     * leftovers and evicted individually.
+     */
+    private void nativesUnits(Path root, List<Path> units) throws IOException {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        List<Path> stamped = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(root)) {
+            walk.filter(path -> path.getFileName().toString().equals(NativesStamp.FILE_NAME)).map(Path::getParent).forEach(stamped::add);
+        }
+        units.addAll(stamped);
+        for (Path file : files(root)) {
+            if (stamped.stream().noneMatch(file::startsWith)) {
+                units.add(file);
+            }
+        }
+    }
+
+    /**
+     * Deletes the unit under the lock its writers take, unless that would free no space.
+     *
+     * @return whether the unit was evicted
+     */
+    private boolean evict(Path unit, Contents contents) throws IOException {
+        try (CacheLock lock = this.lock(unit)) {
+            if (lock != null && lock.isContended()) {
+                // Another instance was just writing it
+                return false;
+            }
+            List<Path> files = files(unit);
+            if (contents.freeable(files) <= 0L) {
+                // Everything in it is still linked from elsewhere, deleting it would only lose the entry
+                return false;
+            }
+            for (Path file : files) {
+                contents.release(file);
+                Files.deleteIfExists(file);
+            }
+            List<Path> directories = Collections.emptyList();
+            if (Files.isDirectory(unit)) {
+                try (Stream<Path> walk = Files.walk(unit)) {
+                    directories = walk.filter(Files::isDirectory).sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+                }
+            }
+            for (Path directory : directories) {
+                try {
+                    Files.deleteIfExists(directory);
+                } catch (DirectoryNotEmptyException e) {
+                    // Holds files that are still being written
+                }
+            }
+            this.accessed.remove(this.key(unit));
+            return true;
+        }
+    }
+
+    /**
+     * @return the lock whoever writes the unit holds, null for blobs which are only ever replaced atomically
+     */
+    private CacheLock lock(Path unit) throws IOException {
+        String root = this.directory.relativize(unit).getName(0).toString();
+        if (!SHARED_DIRECTORIES.contains(root)) {
+            return CacheLock.forRelease(root);
+        }
+        switch (root) {
+            case "cds":
+                return CacheLock.acquire("cds");
+            case "blobs":
+                return null;
+            default:
+                return CacheLock.forArtifact(unit);
+        }
+    }
+
+    /**
+     * @return every regular file of the file or directory, except those that are still being written
+     */
+    private static List<Path> files(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> walk = Files.walk(path)) {
+            return walk.filter(Files::isRegularFile).filter(file -> !isInProgress(file)).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Partial downloads, links, imports, extractions and temporary files are moved into place once complete, they belong to
+     * whoever writes them.
+     */
+    private static boolean isInProgress(Path file) {
+        String name = file.getFileName().toString();
+        return IN_PROGRESS_SUFFIXES.stream().anyMatch(name::endsWith);
+    }
+
+    private long lastAccess(Path unit) {
+        Long accessed = this.accessed.get(this.key(unit));
+        if (accessed != null) {
+            return accessed;
+        }
+        try {
+            return Files.getLastModifiedTime(unit).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private String key(Path path) {
+        return this.directory.relativize(path.toAbsolutePath().normalize()).toString().replace('\\', '/');
+    }
+
+    /**
+     * Sizes of the cache's files, counting hardlinked content once. Content is only considered freed once every link to it,
+     * apart from its blob, is gone, the blob is then deleted along with it.
+     * <p>
+     * Content that is also linked from outside of the cache, e.g. from a shared blob store, is never freed. Where the
+     * filesystem has neither file keys nor link counts (Windows), links are found by comparing files of the same size
+     * instead, and links from outside of the cache can't be seen.
+     */
+    private final class Contents {
+
+        private final Map<Object, Content> contents = new HashMap<>();
+        private final Map<Long, List<Content>> keyless = new HashMap<>();
+        private final Map<Path, Content> byPath = new HashMap<>();
+        private long size;
+
+        private void walk(Path root) throws IOException {
+            try (Stream<Path> walk = Files.walk(root)) {
+                for (Path path : (Iterable<Path>) walk::iterator) {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    if (!attributes.isRegularFile()) {
+                        continue;
+                    }
+                    Object key = attributes.fileKey();
+                    Content content = key == null ? this.sameFile(path, attributes.size()) : this.contents.get(key);
+                    if (content == null) {
+                        content = new Content(attributes.size(), links(path));
+                        this.contents.put(key == null ? path : key, content);
+                        if (key == null) {
+                            this.keyless.computeIfAbsent(attributes.size(), $ -> new ArrayList<>()).add(content);
+                        }
+                        this.size += attributes.size();
+                    }
+                    content.paths.add(path);
+                    content.known++;
+                    this.byPath.put(path, content);
+                }
+            }
+        }
+
+        private Content sameFile(Path path, long size) throws IOException {
+            for (Content content : this.keyless.getOrDefault(size, Collections.emptyList())) {
+                if (Files.isSameFile(content.paths.get(0), path)) {
+                    return content;
+                }
+            }
+            return null;
+        }
+
+        private long size() {
+            return this.size;
+        }
+
+        private List<Path> orphanedBlobs() {
+            Path blobs = CacheCollector.this.directory.resolve("blobs");
+            List<Path> orphans = new ArrayList<>();
+            for (Content content : this.contents.values()) {
+                if (!content.isLinkedElsewhere() && content.paths.stream().allMatch(path -> path.startsWith(blobs))) {
+                    orphans.addAll(content.paths);
+                }
+            }
+            return orphans;
+        }
+
+        /**
+         * @return how many bytes deleting the files would free
+         */
+        private long freeable(List<Path> files) {
+            Path blobs = CacheCollector.this.directory.resolve("blobs");
+            Set<Path> deleted = new HashSet<>(files);
+            Set<Content> freed = Collections.newSetFromMap(new IdentityHashMap<>());
+            long freeable = 0L;
+            for (Path file : files) {
+                Content content = this.byPath.get(file);
+                if (content == null || content.freed || content.isLinkedElsewhere() || !freed.add(content)) {
+                    continue;
+                }
+                if (content.paths.stream().allMatch(path -> deleted.contains(path) || path.startsWith(blobs))) {
+                    freeable += content.size;
+                }
+            }
+            return freeable;
+        }
+
+        private void release(Path path) throws IOException {
+            Content content = this.byPath.remove(path);
+            if (content == null || !content.paths.remove(path) || content.freed) {
+                return;
+            }
+            Path blobs = CacheCollector.this.directory.resolve("blobs");
+            boolean onlyBlobs = content.paths.stream().allMatch(remaining -> remaining.startsWith(blobs));
+            if (onlyBlobs && !content.isLinkedElsewhere()) {
+                for (Path blob : content.paths) {
+                    Files.deleteIfExists(blob);
+                    this.byPath.remove(blob);
+                }
+                content.paths.clear();
+                content.freed = true;
+                this.size -= content.size;
+            }
+        }
+
+        private int links(Path path) {
+            try {
+                return ((Number) Files.getAttribute(path, "unix:nlink")).intValue();
+            } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+                return Content.UNKNOWN_LINKS;
+            }
+        }
+
+    }
+
+    private static final class Content {
+
+        private static final int UNKNOWN_LINKS = -1;
+
+        private final long size;
+        private final int links;
+        private final List<Path> paths = new ArrayList<>();
+        private int known;
+        private boolean freed;
+
+        private Content(long size, int links) {
+            this.size = size;
+            this.links = links;
+        }
+
+        private boolean isLinkedElsewhere() {
+            return this.links != UNKNOWN_LINKS && this.links > this.known;
+        }
+
+    }
+
+}
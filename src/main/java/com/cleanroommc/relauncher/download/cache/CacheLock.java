@@ -0,0 +1,167 @@
+package com.cleanroommc.relauncher.download.cache;
+
+import com.cleanroommc.relauncher.CleanroomRelauncher;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An exclusive lock on a part of the cache, held across every relauncher process on the machine.
+ * <p>
+ * Only writers lock: completed entries are always moved into place atomically, so readers never need to.
+ * A writer that had to wait must check whether the holder already did its work before doing it again.
+ * Locks can also be {@link #share shared}, which only keeps out whoever takes them exclusively.
+ */
+public final class CacheLock implements AutoCloseable {
+
+    private static final Path DIRECTORY = CleanroomRelauncher.CACHE_DIR.resolve("locks");
+    // File locks are held by the whole JVM, threads of one process are kept apart separately
+    private static final ConcurrentMap<String, ReentrantLock> LOCAL = new ConcurrentHashMap<>();
+
+    public static CacheLock forRelease(String tag) throws IOException {
+        return acquire("release-" + tag);
+    }
+
+    /**
+     * @param path the file or directory that is about to be written
+     */
+    public static CacheLock forArtifact(Path path) throws IOException {
+        return acquire("artifact-" + DigestUtils.sha1Hex(path.toAbsolutePath().normalize().toString()));
+    }
+
+    /**
+     * Takes the lock without waiting.
+     *
+     * @return null if another process or thread holds it, shared or not
+     */
+    public static CacheLock tryAcquire(String name) throws IOException {
+        ReentrantLock local = LOCAL.computeIfAbsent(name, $ -> new ReentrantLock());
+        if (!local.tryLock()) {
+            return null;
+        }
+        if (local.getHoldCount() > 1) {
+            return new CacheLock(local, null, null, false);
+        }
+        FileChannel channel = null;
+        try {
+            Files.createDirectories(DIRECTORY);
+            channel = FileChannel.open(DIRECTORY.resolve(name + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Shared by this process
+                lock = null;
+            }
+            if (lock != null) {
+                return new CacheLock(local, channel, lock, false);
+            }
+            channel.close();
+            local.unlock();
+            return null;
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            local.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes the lock together with any other process that shares it, waiting only while it is held exclusively. A process
+     * shares each lock at most once.
+     */
+    public static CacheLock share(String name) throws IOException {
+        Files.createDirectories(DIRECTORY);
+        FileChannel channel = FileChannel.open(DIRECTORY.resolve(name + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            boolean contended = false;
+            FileLock lock = channel.tryLock(0L, Long.MAX_VALUE, true);
+            if (lock == null) {
+                CleanroomRelauncher.LOGGER.info("Waiting for another instance to finish with {}...", name);
+                lock = channel.lock(0L, Long.MAX_VALUE, true);
+                contended = true;
+            }
+            return new CacheLock(null, channel, lock, contended);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static CacheLock acquire(String name) throws IOException {
+        ReentrantLock local = LOCAL.computeIfAbsent(name, $ -> new ReentrantLock());
+        boolean contended = !local.tryLock();
+        if (contended) {
+            local.lock();
+        }
+        if (local.getHoldCount() > 1) {
+            return new CacheLock(local, null, null, false);
+        }
+        FileChannel channel = null;
+        try {
+            Files.createDirectories(DIRECTORY);
+            channel = FileChannel.open(DIRECTORY.resolve(name + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                CleanroomRelauncher.LOGGER.info("Waiting for another instance to finish with {}...", name);
+                lock = channel.lock();
+                contended = true;
+            }
+            return new CacheLock(local, channel, lock, contended);
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            local.unlock();
+            throw e;
+        }
+    }
+
+    // Null for shared locks
+    private final ReentrantLock local;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final boolean contended;
+
+    private CacheLock(ReentrantLock local, FileChannel channel, FileLock lock, boolean contended) {
+        this.local = local;
+        this.channel = channel;
+        this.lock = lock;
+        this.contended = contended;
+    }
+
+    /**
+     * @return true if another process or thread held the lock first, whatever it guards may have changed in the meantime
+     */
+    public boolean isContended() {
+        return this.contended;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (this.lock != null) {
+                this.lock.release();
+            }
+            if (this.channel != null) {
+                this.channel.close();
+            }
+        } finally {
+            if (this.local != null) {
+                this.local.unlock();
+            }
+        }
+    }
+
+}
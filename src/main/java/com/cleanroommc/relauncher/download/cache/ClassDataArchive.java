@@ -0,0 +1,305 @@
+package com.cleanroommc.relauncher.download.cache;
+
+import com.cleanroommc.javautils.JavaUtils;
+import com.cleanroommc.javautils.api.JavaVersion;
+import com.cleanroommc.relauncher.CleanroomRelauncher;
+import com.cleanroommc.relauncher.util.AtomicFiles;
+import com.google.gson.reflect.TypeToken;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.logging.log4j.util.ProcessIdUtil;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Class data sharing archive of the relaunched JVM. The classpath of a release never changes, so the classes loaded by
+ * one launch are archived at its exit and mapped straight into every later launch instead of being loaded anew.
+ * <p>
+ * JDK 25 and later use the AOT cache, earlier JDKs a dynamic CDS archive. Archives are keyed by the release, the classpath
+ * including the size and modification time of every jar on it, and the JDK. A change to any of them records a new archive
+ * on the next launch and replaces the old one once it exits.
+ * Archives can't be made of classpath directories, those are launched from jars packed of their contents instead. Their
+ * contents are only hashed again once the size or modification time of a file in them changed.
+ */
+public final class ClassDataArchive {
+
+    private static final int AOT_CACHE_VERSION = 25;
+    private static final int DYNAMIC_ARCHIVE_VERSION = 13;
+    private static final int KEY_LENGTH = 16;
+    private static final String DIRECTORIES_FILE = "directories.json";
+    private static final Pattern JAVA_VERSION = Pattern.compile("^JAVA_VERSION=\"?([^\"\\s]+)\"?", Pattern.MULTILINE);
+    private static final List<String> ARCHIVE_FLAGS = Arrays.asList("-Xshare", "-XX:SharedArchiveFile", "-XX:ArchiveClassesAtExit",
+            "-XX:+AutoCreateSharedArchive", "-XX:AOTCache", "-XX:AOTCacheOutput", "-XX:AOTMode", "-XX:AOTConfiguration");
+
+    /**
+     * @param javaArguments arguments the user passes to the relaunched JVM themselves
+     * @return the archive for this launch, or null if it is disabled or the JDK does not support it
+     */
+    public static ClassDataArchive of(String javaPath, String javaArguments, String tag, List<String> classPath) {
+        if (!CleanroomRelauncher.CONFIG.isSharingClassData()) {
+            return null;
+        }
+        if (javaArguments != null && ARCHIVE_FLAGS.stream().anyMatch(javaArguments::contains)) {
+            CleanroomRelauncher.LOGGER.debug("Java arguments already configure class data sharing, leaving it to them.");
+            return null;
+        }
+        try {
+            Path executable = Paths.get(javaPath).toRealPath();
+            StringBuilder identity = new StringBuilder();
+            int major = identify(executable, identity);
+            if (major < DYNAMIC_ARCHIVE_VERSION) {
+                return null;
+            }
+            identity.append('\n').append(tag);
+            Path directory = CleanroomRelauncher.CACHE_DIR.resolve("cds");
+            Path directoriesFile = directory.resolve(DIRECTORIES_FILE);
+            Map<String, HashedDirectory> hashed = readDirectories(directoriesFile);
+            boolean rehashed = false;
+            List<String> archivedClassPath = new ArrayList<>();
+            Map<Path, Path> packed = new LinkedHashMap<>();
+            for (String entry : classPath) {
+                Path path = Paths.get(entry);
+                if (Files.isDirectory(path)) {
+                    String key = path.toAbsolutePath().normalize().toString();
+                    String stamp = stamp(path);
+                    HashedDirectory known = hashed.get(key);
+                    if (known == null || !known.stamp.equals(stamp)) {
+                        known = new HashedDirectory(stamp, hashContents(path));
+                        hashed.put(key, known);
+                        rehashed = true;
+                    }
+                    // Named by the hash of their contents
+                    Path jar = directory.resolve(path.getFileName() + "-" + known.hash.substring(0, KEY_LENGTH) + ".jar");
+                    packed.put(path, jar);
+                    archivedClassPath.add(jar.toAbsolutePath().toString());
+                    identity.append('\n').append(jar.toAbsolutePath());
+                } else {
+                    archivedClassPath.add(entry);
+                    identity.append('\n').append(entry);
+                    if (Files.isRegularFile(path)) {
+                        // A jar replaced in place keeps its path, the archive must not outlive it
+                        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                        identity.append('\n').append(attributes.size()).append(':').append(attributes.lastModifiedTime().toMillis());
+                    }
+                }
+            }
+            if (rehashed) {
+                // Another instance saving its own directories at the same time only costs one of them a rehash
+                AtomicFiles.writeJson(directoriesFile, hashed);
+            }
+            String name = tag.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + DigestUtils.sha1Hex(identity.toString()).substring(0, KEY_LENGTH);
+            boolean aot = major >= AOT_CACHE_VERSION;
+            return new ClassDataArchive(directory, name + (aot ? ".aot" : ".jsa"), aot, archivedClassPath, packed, directoriesFile);
+        } catch (Throwable t) {
+            CleanroomRelauncher.LOGGER.warn("Unable to identify the JDK at {}, launching without class data sharing.", javaPath, t);
+            return null;
+        }
+    }
+
+    /**
+     * Describes the JDK by its release file and runtime image, which change with every update, without starting it.
+     *
+     * @return the JDK's major version
+     */
+    private static int identify(Path executable, StringBuilder identity) throws IOException {
+        Path home = executable.getParent().getParent();
+        Path release = home.resolve("release");
+        Path modules = home.resolve("lib").resolve("modules");
+        if (Files.isRegularFile(release) && Files.isRegularFile(modules)) {
+            String content = new String(Files.readAllBytes(release), StandardCharsets.UTF_8);
+            Matcher matcher = JAVA_VERSION.matcher(content);
+            if (matcher.find()) {
+                BasicFileAttributes attributes = Files.readAttributes(modules, BasicFileAttributes.class);
+                identity.append(home).append('\n').append(content).append('\n').append(attributes.size()).append(':').append(attributes.lastModifiedTime().toMillis());
+                return JavaVersion.parseOrThrow(matcher.group(1)).major();
+            }
+        }
+        BasicFileAttributes attributes = Files.readAttributes(executable, BasicFileAttributes.class);
+        JavaVersion version = JavaUtils.parseInstall(executable.toString()).version();
+        identity.append(executable).append('\n').append(version).append('\n').append(attributes.size()).append(':').append(attributes.lastModifiedTime().toMillis());
+        return version.major();
+    }
+
+    private static Map<String, HashedDirectory> readDirectories(Path file) {
+        if (Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file)) {
+                Map<String, HashedDirectory> read = CleanroomRelauncher.GSON.fromJson(reader, new TypeToken<Map<String, HashedDirectory>>() { }.getType());
+                if (read != null) {
+                    return read;
+                }
+            } catch (Throwable t) {
+                CleanroomRelauncher.LOGGER.warn("Unable to read {}, classpath directories will be hashed again.", file, t);
+            }
+        }
+        return new HashMap<>();
+    }
+
+    /**
+     * Describes a directory by the path, size and modification time of every file in it, without reading them.
+     */
+    private static String stamp(Path directory) throws IOException {
+        MessageDigest digest = DigestUtils.getSha1Digest();
+        try (Stream<Path> walk = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) walk.filter(Files::isRegularFile).sorted()::iterator) {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                String line = directory.relativize(file).toString().replace('\\', '/') + '\n' + attributes.size() + ':' + attributes.lastModifiedTime().toMillis() + '\n';
+                digest.update(line.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    private static String hashContents(Path directory) throws IOException {
+        MessageDigest digest = DigestUtils.getSha1Digest();
+        try (Stream<Path> walk = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) walk.filter(Files::isRegularFile).sorted()::iterator) {
+                digest.update(directory.relativize(file).toString().replace('\\', '/').getBytes(StandardCharsets.UTF_8));
+                digest.update(Files.readAllBytes(file));
+            }
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    private final Path directory;
+    private final Path archive;
+    private final Path recording;
+    private final boolean aot;
+    private final List<String> classPath;
+    private final Map<Path, Path> packed;
+    private final Path directoriesFile;
+
+    private ClassDataArchive(Path directory, String name, boolean aot, List<String> classPath, Map<Path, Path> packed, Path directoriesFile) {
+        this.directory = directory;
+        this.archive = directory.resolve(name);
+        // Recorded under a name of its own, so concurrent first launches never write into the same file
+        this.recording = directory.resolve(name + "." + ProcessIdUtil.getProcessId() + ".tmp");
+        this.aot = aot;
+        this.classPath = classPath;
+        this.packed = packed;
+        this.directoriesFile = directoriesFile;
+    }
+
+    /**
+     * @return the classpath to launch with, in which directories are replaced by their packed jars
+     */
+    public List<String> getClassPath() {
+        return this.classPath;
+    }
+
+    /**
+     * @return the archive, the packed jars and their hashes, everything this launch uses from the archive directory
+     */
+    public List<Path> getFiles() {
+        List<Path> files = new ArrayList<>(this.packed.values());
+        files.add(this.archive);
+        files.add(this.directoriesFile);
+        return files;
+    }
+
+    /**
+     * Packs the classpath directories that are not packed yet, must be called before launching with {@link #getClassPath()}.
+     *
+     * @return the JVM arguments that either use the archive or record it
+     */
+    public List<String> arguments() throws IOException {
+        Files.createDirectories(this.directory);
+        // A concurrent launch may be packing the same contents, a packed jar is never replaced once it exists
+        try (CacheLock lock = CacheLock.acquire("cds")) {
+            for (Map.Entry<Path, Path> entry : this.packed.entrySet()) {
+                if (!Files.isRegularFile(entry.getValue())) {
+                    pack(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        List<String> arguments = new ArrayList<>();
+        if (Files.isRegularFile(this.archive)) {
+            CleanroomRelauncher.LOGGER.info("Launching with class data sharing archive {}", this.archive.getFileName());
+            arguments.add((this.aot ? "-XX:AOTCache=" : "-XX:SharedArchiveFile=") + this.archive);
+        } else {
+            CleanroomRelauncher.LOGGER.info("Recording a class data sharing archive during this launch, later launches will start faster.");
+            arguments.add((this.aot ? "-XX:AOTCacheOutput=" : "-XX:ArchiveClassesAtExit=") + this.recording);
+        }
+        return arguments;
+    }
+
+    /**
+     * Packed once and never rewritten, the archive is only valid for as long as the jar's modification time stays the same.
+     */
+    private static void pack(Path directory, Path jar) throws IOException {
+        AtomicFiles.write(jar, stream -> {
+            try (JarOutputStream out = new JarOutputStream(stream); Stream<Path> walk = Files.walk(directory)) {
+                for (Path file : (Iterable<Path>) walk.filter(Files::isRegularFile).sorted()::iterator) {
+                    out.putNextEntry(new JarEntry(directory.relativize(file).toString().replace('\\', '/')));
+                    Files.copy(file, out);
+                    out.closeEntry();
+                }
+            }
+        });
+    }
+
+    /**
+     * Called once the relaunched JVM exited, moves a newly recorded archive into place and removes the archives it replaced.
+     */
+    public void settle(int exitCode) {
+        if (!Files.exists(this.recording)) {
+            return;
+        }
+        try {
+            if (exitCode != 0) {
+                // An archive written by a JVM that did not exit cleanly is not trusted
+                Files.delete(this.recording);
+                return;
+            }
+            AtomicFiles.move(this.recording, this.archive);
+            // Dumped read only, which would keep it from being replaced or evicted on Windows
+            this.archive.toFile().setWritable(true);
+            String name = this.archive.getFileName().toString();
+            String release = name.substring(0, name.lastIndexOf('-') + 1);
+            char[] key = new char[KEY_LENGTH];
+            Arrays.fill(key, '?');
+            // Only archives of the same release, another release's tag may start with this one's
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, release + new String(key) + ".{jsa,aot}")) {
+                for (Path stale : stream) {
+                    if (!stale.equals(this.archive)) {
+                        Files.deleteIfExists(stale);
+                    }
+                }
+            }
+            CleanroomRelauncher.LOGGER.info("Recorded class data sharing archive {} ({} KiB)", this.archive.getFileName(), Files.size(this.archive) / 1024L);
+        } catch (IOException e) {
+            CleanroomRelauncher.LOGGER.warn("Unable to keep the recorded class data sharing archive", e);
+        }
+    }
+
+    private static final class HashedDirectory {
+
+        private String stamp;
+        private String hash;
+
+        private HashedDirectory(String stamp, String hash) {
+            this.stamp = stamp;
+            this.hash = hash;
+        }
+
+    }
+
+}
@@ -5,12 +5,16 @@ import com.cleanroommc.relauncher.download.CleanroomMultiMcPack;
 import com.cleanroommc.relauncher.download.CleanroomRelease;
 import com.cleanroommc.relauncher.download.GlobalDownloader;
 import com.cleanroommc.relauncher.download.schema.Version;
+import com.cleanroommc.relauncher.util.Workers;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class CleanroomCache {
 
@@ -48,10 +52,18 @@ public class CleanroomCache {
         CleanroomMultiMcPack multiMcPack = CleanroomMultiMcPack.of(this.version, multiMcPackZip);
         // CleanroomInstaller installer = CleanroomInstaller.of(this.version, installerJar);
 
-        multiMcPack.install(this.release.getMultiMcPackArtifact().downloadUrl);
-
-        if (!Files.exists(lwjglJson) || !Files.exists(forgeJson) || !Files.exists(minecraftJson) || !Files.exists(universalJar)) {
+        CleanroomRelease.Asset multiMcPackAsset = this.release.getMultiMcPackArtifact();
+        long extractionStart = System.currentTimeMillis();
+        List<CompletableFuture<Version>> parsing;
+        if (Files.exists(lwjglJson) && Files.exists(forgeJson) && Files.exists(minecraftJson) && Files.exists(universalJar)) {
+            multiMcPack.install(multiMcPackAsset.downloadUrl, multiMcPackAsset.size);
+            parsing = Arrays.asList(parseAsync(forgeJson), parseAsync(minecraftJson), parseAsync(lwjglJson));
+        } else if (Files.exists(multiMcPackZip)) {
             multiMcPack.extract(this);
+            parsing = Arrays.asList(parseAsync(forgeJson), parseAsync(minecraftJson), parseAsync(lwjglJson));
+        } else {
+            // Libraries of each patch are queued as soon as it was parsed, while the pack itself is still downloading
+            parsing = multiMcPack.installStreaming(this, multiMcPackAsset.downloadUrl, multiMcPackAsset.size);
         }
 
         /*
@@ -60,32 +72,67 @@ public class CleanroomCache {
         }
          */
 
+        // Natives jars are extracted as soon as their own download is verified, while the rest are still downloading
+        List<CompletableFuture<CompletableFuture<Void>>> queueing = new ArrayList<>();
+        for (int i = 0; i < parsing.size(); i++) {
+            boolean forge = i == 0;
+            queueing.add(parsing.get(i).thenApplyAsync(version -> {
+                if (forge) {
+                    version.libraryPaths.add(universalJar.toAbsolutePath().toString());
+                }
+                return version.downloadLibraries(librariesDirectory, nativesDirectory);
+            }, Workers.POOL));
+        }
         List<Version> versions = new ArrayList<>();
-
-        Version forgeJsonVersion = Version.parse(forgeJson);
-        forgeJsonVersion.libraryPaths.add(this.getUniversalJar().toAbsolutePath().toString());
-
-        Version minecraftJsonVersion = Version.parse(minecraftJson);
-        Version lwjglJsonVersion = Version.parse(lwjglJson);
-
-        versions.add(forgeJsonVersion);
-        versions.add(minecraftJsonVersion);
-        versions.add(lwjglJsonVersion);
-
-        for (Version version : versions) {
-            version.downloadLibraries(librariesDirectory);
+        // Libraries are only done once they were stored as blobs too, which the downloads themselves don't wait for
+        List<CompletableFuture<Void>> installing = new ArrayList<>();
+        for (int i = 0; i < parsing.size(); i++) {
+            installing.add(join(queueing.get(i)));
+            Version version = join(parsing.get(i));
+            versions.add(version);
+            installing.add(version.extractNatives(librariesDirectory, nativesDirectory, Workers.POOL));
         }
 
-        GlobalDownloader.INSTANCE.blockUntilFinished();
-
-        for (Version version : versions) {
-            version.extractNatives(librariesDirectory, nativesDirectory);
+        try {
+            GlobalDownloader.INSTANCE.blockUntilFinished();
+            multiMcPack.awaitStreaming();
+            join(CompletableFuture.allOf(installing.toArray(new CompletableFuture<?>[0])));
+        } finally {
+            // Saved once nothing records anymore, blobs are still being stored and natives adopted after the downloads finished
+            VerificationIndex.INSTANCE.save();
         }
+        ForeignLibraries.INSTANCE.report();
+        CleanroomRelauncher.LOGGER.info("Downloaded libraries and extracted natives in {}ms.", System.currentTimeMillis() - extractionStart);
 
         // return version;
         return versions;
     }
 
+    private static CompletableFuture<Version> parseAsync(Path json) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return Version.parse(json);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, Workers.POOL);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public Path getDirectory() {
+        return this.directory;
+    }
+
     public Path getInstallerJar() {
         return this.directory.resolve("installer.jar");
     }
@@ -0,0 +1,115 @@
+package com.cleanroommc.relauncher.download.cache;
+
+import com.cleanroommc.platformutils.Platform;
+import com.cleanroommc.relauncher.CleanroomRelauncher;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Takes libraries from the library directories of other launchers instead of downloading them again.
+ * <p>
+ * Candidates are found by their Maven path and only used when their SHA-1 matches. Their hashes are remembered by the
+ * {@link VerificationIndex}, so every foreign file is only ever hashed once. Foreign files are copied rather than linked,
+ * the other launcher may rewrite them in place.
+ */
+public final class ForeignLibraries {
+
+    public static final ForeignLibraries INSTANCE = new ForeignLibraries(roots(CleanroomRelauncher.CONFIG.getLibraryRoots()));
+
+    private static List<Path> roots(List<String> configured) {
+        Set<Path> roots = new LinkedHashSet<>();
+        for (String root : configured) {
+            roots.add(Paths.get(root));
+        }
+        Path home = Paths.get(System.getProperty("user.home"));
+        Platform platform = Platform.current();
+        if (platform.isWindows()) {
+            String appData = System.getenv("APPDATA");
+            if (appData != null) {
+                roots.add(Paths.get(appData, ".minecraft", "libraries"));
+                roots.add(Paths.get(appData, "PrismLauncher", "libraries"));
+            }
+        } else if (platform.isMacOS()) {
+            Path support = home.resolve("Library/Application Support");
+            roots.add(support.resolve("minecraft/libraries"));
+            roots.add(support.resolve("PrismLauncher/libraries"));
+        } else {
+            roots.add(home.resolve(".minecraft/libraries"));
+            roots.add(home.resolve(".local/share/PrismLauncher/libraries"));
+            roots.add(home.resolve(".var/app/org.prismlauncher.PrismLauncher/data/PrismLauncher/libraries"));
+        }
+        // MultiMC is portable, it is only found where it is usually unpacked to
+        roots.add(home.resolve("MultiMC/libraries"));
+        List<Path> existing = new ArrayList<>();
+        for (Path root : roots) {
+            if (Files.isDirectory(root) && !root.toAbsolutePath().normalize().startsWith(CleanroomRelauncher.CACHE_DIR.toAbsolutePath().normalize())) {
+                existing.add(root);
+            }
+        }
+        return existing;
+    }
+
+    private final List<Path> roots;
+    private final AtomicInteger reused = new AtomicInteger();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    private ForeignLibraries(List<Path> roots) {
+        this.roots = roots;
+    }
+
+    /**
+     * Copies a library from another launcher if one of them has a matching copy.
+     *
+     * @param relativePath Maven path of the library
+     * @param sha1 expected SHA-1 of the library
+     * @param size expected size of the library, 0 or below if unknown
+     * @param target where the library should be
+     * @return true if the library was taken from another launcher
+     */
+    public boolean take(String relativePath, String sha1, long size, Path target) {
+        if (sha1 == null) {
+            return false;
+        }
+        for (Path root : this.roots) {
+            Path candidate = root.resolve(relativePath);
+            if (!VerificationIndex.INSTANCE.isVerified(candidate, sha1, size)) {
+                continue;
+            }
+            try {
+                Files.createDirectories(target.getParent());
+                Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".import");
+                Files.copy(candidate, temp, StandardCopyOption.REPLACE_EXISTING);
+                BlobStore.INSTANCE.adopt(temp, sha1);
+                if (BlobStore.INSTANCE.materialize(sha1, size, target)) {
+                    VerificationIndex.INSTANCE.record(target, sha1);
+                    this.reused.incrementAndGet();
+                    this.bytesSaved.addAndGet(Files.size(target));
+                    CleanroomRelauncher.LOGGER.debug("Reused {} from {}", relativePath, root);
+                    return true;
+                }
+            } catch (IOException e) {
+                CleanroomRelauncher.LOGGER.warn("Unable to reuse {} from {}", relativePath, root, e);
+            }
+        }
+        return false;
+    }
+
+    public void report() {
+        int reused = this.reused.getAndSet(0);
+        long bytesSaved = this.bytesSaved.getAndSet(0L);
+        if (reused > 0) {
+            CleanroomRelauncher.LOGGER.info("Reused {} libraries from other launchers, saving {} KiB of downloads.", reused, bytesSaved / 1024);
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.cleanroommc.relauncher.download.cache;
+
+import com.cleanroommc.platformutils.Platform;
+import com.cleanroommc.relauncher.CleanroomRelauncher;
+import com.cleanroommc.relauncher.util.AtomicFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything needed to relaunch a release, resolved once and persisted next to the release's cache.
+ * <p>
+ * Warm launches load the plan and only stat the files it was built from, instead of parsing version jsons, evaluating
+ * library rules, verifying libraries, extracting natives and hashing the wrapper again. A plan is rebuilt whenever the
+ * release, the platform or the relauncher jar differ, or any of its files changed.
+ */
+public final class LaunchPlan {
+
+    private static final String FILE_NAME = "launch-plan.json";
+
+    /**
+     * @param relauncherJar the jar (or directory) the relauncher runs from, plans are discarded whenever it changes
+     */
+    public static String keyOf(String tag, Platform platform, File relauncherJar) {
+        String arch = (platform.isArm() ? "arm" : "x86") + (platform.is64Bit() ? "64" : "32");
+        return String.format("%s|%s-%s|%d:%d", tag, platform.operatingSystem(), arch, relauncherJar.length(), relauncherJar.lastModified());
+    }
+
+    /**
+     * @return the persisted plan of the release if it matches the key and none of its files changed, null otherwise
+     */
+    public static LaunchPlan load(CleanroomCache cache, String key) {
+        Path file = cache.getDirectory().resolve(FILE_NAME);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (Reader reader = Files.newBufferedReader(file)) {
+            LaunchPlan plan = CleanroomRelauncher.GSON.fromJson(reader, LaunchPlan.class);
+            if (plan == null || !key.equals(plan.key)) {
+                CleanroomRelauncher.LOGGER.info("Launch plan is outdated, resolving again.");
+                return null;
+            }
+            for (Fingerprint fingerprint : plan.fingerprints) {
+                if (!fingerprint.matches()) {
+                    CleanroomRelauncher.LOGGER.info("{} changed since the launch plan was made, resolving again.", fingerprint.path);
+                    return null;
+                }
+            }
+            return plan;
+        } catch (Throwable t) {
+            CleanroomRelauncher.LOGGER.warn("Unable to read launch plan, resolving again.", t);
+            return null;
+        }
+    }
+
+    /**
+     * @param fingerprinted files and directories that have to stay unchanged for the plan to be reused
+     */
+    public static LaunchPlan create(String key, List<String> classPath, List<String> nativesPaths, String mainClass, List<Path> fingerprinted) throws IOException {
+        LaunchPlan plan = new LaunchPlan();
+        plan.key = key;
+        plan.classPath = classPath;
+        plan.nativesPaths = nativesPaths;
+        plan.mainClass = mainClass;
+        plan.fingerprints = new ArrayList<>();
+        for (Path path : fingerprinted) {
+            plan.fingerprints.add(Fingerprint.of(path));
+        }
+        return plan;
+    }
+
+    private String key;
+    private List<String> classPath;
+    private List<String> nativesPaths;
+    private String mainClass;
+    private List<Fingerprint> fingerprints;
+
+    public List<String> getClassPath() {
+        return classPath;
+    }
+
+    public List<String> getNativesPaths() {
+        return nativesPaths;
+    }
+
+    public String getMainClass() {
+        return mainClass;
+    }
+
+    public void save(CleanroomCache cache) {
+        Path file = cache.getDirectory().resolve(FILE_NAME);
+        try {
+            // Other instances read plans without locking, they must never see a partial one
+            AtomicFiles.writeJson(file, this);
+        } catch (IOException e) {
+            CleanroomRelauncher.LOGGER.warn("Unable to save launch plan to {}", file, e);
+        }
+    }
+
+    private static final class Fingerprint {
+
+        private static final long DIRECTORY = -1L;
+        private static final long MISSING = -2L;
+
+        private static Fingerprint of(Path path) throws IOException {
+            Fingerprint fingerprint = new Fingerprint();
+            fingerprint.path = path.toAbsolutePath().toString();
+            fingerprint.read(path);
+            return fingerprint;
+        }
+
+        private String path;
+        private long size;
+        private long modified;
+
+        private boolean matches() {
+            Fingerprint current = new Fingerprint();
+            try {
+                current.read(Paths.get(this.path));
+            } catch (IOException e) {
+                return false;
+            }
+            return current.size == this.size && current.modified == this.modified;
+        }
+
+        private void read(Path path) throws IOException {
+            if (!Files.exists(path)) {
+                this.size = MISSING;
+                this.modified = 0L;
+                return;
+            }
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            this.size = attributes.isDirectory() ? DIRECTORY : attributes.size();
+            this.modified = attributes.lastModifiedTime().toMillis();
+        }
+
+    }
+
+}
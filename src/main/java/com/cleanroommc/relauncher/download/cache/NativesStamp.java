@@ -0,0 +1,119 @@
+package com.cleanroommc.relauncher.download.cache;
+
+import com.cleanroommc.relauncher.CleanroomRelauncher;
+import com.cleanroommc.relauncher.util.AtomicFiles;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records which natives jar a natives directory was extracted from and what was extracted, so warm launches can tell the
+ * directory is complete from one small file instead of opening the jar.
+ */
+public final class NativesStamp {
+
+    public static final String FILE_NAME = ".extracted.json";
+
+    /**
+     * @param sha1 expected SHA-1 of the natives jar, null if unknown
+     * @return true if the directory was extracted from this exact jar and none of its files were deleted or changed since
+     */
+    public static boolean isCurrent(Path nativesPath, Path jarPath, String sha1) {
+        Path file = nativesPath.resolve(FILE_NAME);
+        if (!Files.isRegularFile(file)) {
+            return false;
+        }
+        try {
+            NativesStamp stamp;
+            try (Reader reader = Files.newBufferedReader(file)) {
+                stamp = CleanroomRelauncher.GSON.fromJson(reader, NativesStamp.class);
+            }
+            if (stamp == null || stamp.files == null || (sha1 != null && !sha1.equalsIgnoreCase(stamp.sha1))) {
+                return false;
+            }
+            BasicFileAttributes jar = Files.readAttributes(jarPath, BasicFileAttributes.class);
+            if (jar.size() != stamp.size || jar.lastModifiedTime().toMillis() != stamp.modified) {
+                return false;
+            }
+            for (Map.Entry<String, Extracted> extracted : stamp.files.entrySet()) {
+                Path path = nativesPath.resolve(extracted.getKey());
+                if (!Files.isRegularFile(path)) {
+                    return false;
+                }
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attributes.size() != extracted.getValue().size || attributes.lastModifiedTime().toMillis() != extracted.getValue().modified) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (Throwable t) {
+            CleanroomRelauncher.LOGGER.debug("Unable to read natives stamp {}", file, t);
+            return false;
+        }
+    }
+
+    /**
+     * @return the stamp of the natives directory followed by every file it lists, or only the stamp if it can't be read
+     */
+    public static List<Path> filesOf(Path nativesPath) {
+        Path file = nativesPath.resolve(FILE_NAME);
+        List<Path> files = new ArrayList<>();
+        files.add(file);
+        try (Reader reader = Files.newBufferedReader(file)) {
+            NativesStamp stamp = CleanroomRelauncher.GSON.fromJson(reader, NativesStamp.class);
+            if (stamp != null && stamp.files != null) {
+                for (String extracted : stamp.files.keySet()) {
+                    files.add(nativesPath.resolve(extracted));
+                }
+            }
+        } catch (Throwable t) {
+            CleanroomRelauncher.LOGGER.debug("Unable to read natives stamp {}", file, t);
+        }
+        return files;
+    }
+
+    /**
+     * Records the size and modification time of every extracted file, a file changed in place is noticed by either.
+     *
+     * @param files paths relative to the natives directory
+     */
+    public static void write(Path nativesPath, Path jarPath, String sha1, Collection<String> files) throws IOException {
+        BasicFileAttributes jar = Files.readAttributes(jarPath, BasicFileAttributes.class);
+        NativesStamp stamp = new NativesStamp();
+        stamp.sha1 = sha1;
+        stamp.size = jar.size();
+        stamp.modified = jar.lastModifiedTime().toMillis();
+        stamp.files = new HashMap<>();
+        for (String file : files) {
+            BasicFileAttributes attributes = Files.readAttributes(nativesPath.resolve(file), BasicFileAttributes.class);
+            stamp.files.put(file, new Extracted(attributes.size(), attributes.lastModifiedTime().toMillis()));
+        }
+        AtomicFiles.writeJson(nativesPath.resolve(FILE_NAME), stamp);
+    }
+
+    private String sha1;
+    private long size;
+    private long modified;
+    private Map<String, Extracted> files;
+
+    private static final class Extracted {
+
+        private long size;
+        private long modified;
+
+        private Extracted(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+
+    }
+
+}
@@ -0,0 +1,138 @@
+package com.cleanroommc.relauncher.download.cache;
+
+import com.cleanroommc.relauncher.CleanroomRelauncher;
+import com.google.gson.reflect.TypeToken;
+import com.cleanroommc.relauncher.util.AtomicFiles;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers files that were already verified against their expected SHA-1, keyed by absolute path.
+ * <p>
+ * A file is trusted without rehashing for as long as its size and last modified time are unchanged.
+ */
+public final class VerificationIndex {
+
+    public static final VerificationIndex INSTANCE = new VerificationIndex(CleanroomRelauncher.CACHE_DIR.resolve("verified.json"));
+
+    private final Path file;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+
+    private VerificationIndex(Path file) {
+        this.file = file;
+        this.entries.putAll(read(file));
+    }
+
+    private static Map<String, Entry> read(Path file) {
+        if (Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file)) {
+                Map<String, Entry> read = CleanroomRelauncher.GSON.fromJson(reader, new TypeToken<Map<String, Entry>>() { }.getType());
+                if (read != null) {
+                    return read;
+                }
+            } catch (Throwable t) {
+                CleanroomRelauncher.LOGGER.error("Unable to read verified.json, files will be rehashed.", t);
+            }
+        }
+        return new HashMap<>();
+    }
+
+    /**
+     * Checks if a file exists and matches what is expected of it. Files that were not verified before are hashed once and recorded.
+     *
+     * @param path the file to check
+     * @param sha1 expected SHA-1 of the file, null if unknown
+     * @param size expected size of the file, 0 or below if unknown
+     * @return true if the file can be used as-is
+     */
+    public boolean isVerified(Path path, String sha1, long size) {
+        if (!Files.isRegularFile(path)) {
+            return false;
+        }
+        try {
+            long actualSize = Files.size(path);
+            if (size > 0 && actualSize != size) {
+                return false;
+            }
+            if (sha1 == null) {
+                return true;
+            }
+            long modified = Files.getLastModifiedTime(path).toMillis();
+            Entry entry = this.entries.get(key(path));
+            if (entry != null && entry.size == actualSize && entry.modified == modified) {
+                return sha1.equalsIgnoreCase(entry.sha1);
+            }
+            String actualSha1;
+            try (InputStream is = Files.newInputStream(path)) {
+                actualSha1 = DigestUtils.sha1Hex(is);
+            }
+            this.put(path, new Entry(actualSha1, actualSize, modified));
+            return sha1.equalsIgnoreCase(actualSha1);
+        } catch (IOException e) {
+            CleanroomRelauncher.LOGGER.warn("Unable to verify {}, it will be downloaded again.", path, e);
+            return false;
+        }
+    }
+
+    /**
+     * Records a file whose SHA-1 was computed while it was being written.
+     */
+    public void record(Path path, String sha1) throws IOException {
+        this.put(path, new Entry(sha1, Files.size(path), Files.getLastModifiedTime(path).toMillis()));
+    }
+
+    /**
+     * Merges what this process recorded into the file, entries other instances recorded in the meantime are kept.
+     */
+    public void save() {
+        if (this.changed.isEmpty()) {
+            return;
+        }
+        try (CacheLock lock = CacheLock.acquire("verified")) {
+            Map<String, Entry> merged = read(this.file);
+            for (String key : this.changed) {
+                merged.put(key, this.entries.get(key));
+            }
+            AtomicFiles.writeJson(this.file, merged);
+            this.changed.clear();
+        } catch (IOException e) {
+            CleanroomRelauncher.LOGGER.error("Unable to save verified.json", e);
+        }
+    }
+
+    private void put(Path path, Entry entry) {
+        String key = key(path);
+        this.entries.put(key, entry);
+        this.changed.add(key);
+    }
+
+    private static String key(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    private static class Entry {
+
+        private String sha1;
+        private long size;
+        private long modified;
+
+        private Entry(String sha1, long size, long modified) {
+            this.sha1 = sha1;
+            this.size = size;
+            this.modified = modified;
+        }
+
+    }
+
+}
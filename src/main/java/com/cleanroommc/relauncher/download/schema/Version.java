@@ -4,37 +4,78 @@ import com.cleanroommc.platformutils.OperatingSystem;
 import com.cleanroommc.platformutils.Platform;
 import com.cleanroommc.relauncher.CleanroomRelauncher;
 import com.cleanroommc.relauncher.download.GlobalDownloader;
+import com.cleanroommc.relauncher.download.StreamConsumer;
+import com.cleanroommc.relauncher.download.cache.BlobStore;
+import com.cleanroommc.relauncher.download.cache.CacheLock;
+import com.cleanroommc.relauncher.download.cache.ForeignLibraries;
+import com.cleanroommc.relauncher.download.cache.NativesStamp;
+import com.cleanroommc.relauncher.download.cache.VerificationIndex;
+import com.cleanroommc.relauncher.util.AtomicFiles;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.logging.log4j.util.ProcessIdUtil;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 public class Version {
 
     private static final Map<OperatingSystem, String> OS_NAMES = new HashMap<>();
+    private static final Map<String, String> ARCHITECTURES = new HashMap<>();
+    private static final Pattern VERSIONED_SHARED_OBJECT = Pattern.compile(".+\\.so(\\.\\d+)*");
 
     static {
         OS_NAMES.put(OperatingSystem.WINDOWS, "windows");
         OS_NAMES.put(OperatingSystem.MAC_OS, "osx");
         OS_NAMES.put(OperatingSystem.LINUX, "linux");
+
+        ARCHITECTURES.put("x64", "x64");
+        ARCHITECTURES.put("x86_64", "x64");
+        ARCHITECTURES.put("amd64", "x64");
+        ARCHITECTURES.put("x86", "x86");
+        ARCHITECTURES.put("i386", "x86");
+        ARCHITECTURES.put("arm64", "arm64");
+        ARCHITECTURES.put("aarch64", "arm64");
+        ARCHITECTURES.put("arm32", "arm32");
+        ARCHITECTURES.put("arm", "arm32");
     }
 
     public static Version parse(Path path) throws IOException {
-        try (InputStreamReader reader = new InputStreamReader(Files.newInputStream(path))) {
-            return CleanroomRelauncher.GSON.fromJson(reader, Version.class);
+        try (InputStream is = Files.newInputStream(path)) {
+            return parse(is);
         } catch (IOException e) {
             throw new IOException("Unable to parse version.json", e);
         }
     }
 
+    /**
+     * Parses a version json from a stream, which is left open.
+     */
+    public static Version parse(InputStream is) {
+        return CleanroomRelauncher.GSON.fromJson(new InputStreamReader(is), Version.class);
+    }
+
     // public Object arguments;
     public String minecraftArguments;
     public AssetIndex assetIndex;
@@ -54,63 +95,304 @@ public class Version {
     public transient List<String> libraryPaths = new ArrayList<>();
     public transient List<String> nativesPaths = new ArrayList<>();
 
-    // TODO: multithread
-    public void downloadLibraries(Path librariesDirectory) {
+    private transient Map<Library, CompletableFuture<Void>> nativeDownloads = new HashMap<>();
+    private transient Map<Library, NativesStream> nativeStreams = new HashMap<>();
+
+    /**
+     * Queues every missing or unverified library of this version. With natives streaming enabled, natives jars that are
+     * downloaded have their natives extracted into nativesDirectory while the bytes arrive.
+     *
+     * @return a future that completes once all of this version's libraries are in place
+     */
+    public CompletableFuture<Void> downloadLibraries(Path librariesDirectory, Path nativesDirectory) {
         if (mainJar != null) {
             libraries.add(mainJar); // Fixme
         }
+        boolean streaming = CleanroomRelauncher.CONFIG.isStreamingNatives();
+        List<CompletableFuture<Void>> downloads = new ArrayList<>();
         for (Version.Library library : libraries) {
             if (library.downloads == null) {
                 continue; // Locally-zipped artifact
             }
             Path libraryJar = librariesDirectory.resolve(library.downloads.artifact.getPath(library.name));
-            if (!Files.exists(libraryJar)) {
-                GlobalDownloader.INSTANCE.from(library.downloads.artifact.url, libraryJar.toFile());
-            }
             Download nativeArtifact = library.getNative(Platform.current());
+            Path nativesJar = null;
+            NativesStream stream = null;
             if (nativeArtifact != null) {
-                Path nativesJar = librariesDirectory.resolve(nativeArtifact.getPath(library.name));
-                if (!Files.exists(nativesJar)) {
-                    GlobalDownloader.INSTANCE.from(nativeArtifact.url, nativesJar.toFile());
+                String relative = nativeArtifact.getPath(library.name);
+                nativesJar = librariesDirectory.resolve(relative);
+                if (streaming) {
+                    stream = new NativesStream(nativesPathOf(nativesDirectory, relative));
+                    nativeStreams.put(library, stream);
                 }
             }
+            boolean nativesInLibrary = libraryJar.equals(nativesJar);
+            CompletableFuture<Void> libraryDownload = fetch(librariesDirectory, libraryJar, library.downloads.artifact, nativesInLibrary ? stream : null);
+            if (libraryDownload != null) {
+                downloads.add(libraryDownload);
+            } else {
+                libraryDownload = CompletableFuture.completedFuture(null);
+            }
+            if (nativeArtifact != null) {
+                CompletableFuture<Void> nativeDownload = libraryDownload;
+                if (!nativesInLibrary) {
+                    nativeDownload = fetch(librariesDirectory, nativesJar, nativeArtifact, stream);
+                    if (nativeDownload != null) {
+                        downloads.add(nativeDownload);
+                    } else {
+                        nativeDownload = CompletableFuture.completedFuture(null);
+                    }
+                }
+                nativeDownloads.put(library, nativeDownload);
+            }
             libraryPaths.add(libraryJar.toAbsolutePath().toString());
         }
+        return CompletableFuture.allOf(downloads.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Makes sure an artifact is in place, linking it from the {@link BlobStore} or taking it from another launcher's
+     * libraries before resorting to a download.
+     *
+     * @return the future of the download that was queued, or null if the artifact is already in place
+     */
+    private static CompletableFuture<Void> fetch(Path librariesDirectory, Path jar, Download artifact, StreamConsumer consumer) {
+        if (VerificationIndex.INSTANCE.isVerified(jar, artifact.sha1, artifact.size)) {
+            if (artifact.sha1 != null) {
+                BlobStore.INSTANCE.store(jar, artifact.sha1);
+            }
+            return null;
+        }
+        if (artifact.sha1 != null && BlobStore.INSTANCE.materialize(artifact.sha1, artifact.size, jar)) {
+            try {
+                // The blob it was linked from was verified first
+                VerificationIndex.INSTANCE.record(jar, artifact.sha1);
+                return null;
+            } catch (IOException e) {
+                CleanroomRelauncher.LOGGER.warn("Unable to record {}", jar, e);
+            }
+        }
+        if (ForeignLibraries.INSTANCE.take(librariesDirectory.relativize(jar).toString(), artifact.sha1, artifact.size, jar)) {
+            return null;
+        }
+        CompletableFuture<Void> download = GlobalDownloader.INSTANCE.from(artifact.url, jar.toFile(), artifact.sha1, artifact.size, consumer);
+        if (artifact.sha1 == null) {
+            return download;
+        }
+        return download.thenRun(() -> BlobStore.INSTANCE.store(jar, artifact.sha1));
     }
 
-    public void extractNatives(Path librariesDirectory, Path nativesDirectory) {
+    /**
+     * Extracts the natives of every library as soon as that library's own natives jar has been downloaded,
+     * {@link #downloadLibraries(Path, Path)} must be called beforehand. Natives already extracted from the download stream
+     * are only stamped.
+     *
+     * @return a future that completes once all natives are extracted
+     */
+    public CompletableFuture<Void> extractNatives(Path librariesDirectory, Path nativesDirectory, Executor executor) {
+        List<CompletableFuture<Void>> extractions = new ArrayList<>();
         for (Version.Library library : libraries) {
             Download nativeArtifact = library.getNative(Platform.current());
             if (nativeArtifact != null) {
                 String relative = nativeArtifact.getPath(library.name);
                 Path jarPath = librariesDirectory.resolve(relative);
-                Path nativesPath = nativesDirectory.resolve(relative.substring(0, relative.lastIndexOf('.')));
+                Path nativesPath = nativesPathOf(nativesDirectory, relative);
                 nativesPaths.add(nativesPath.toAbsolutePath().toString());
-                try (FileSystem jarFs = FileSystems.newFileSystem(jarPath, null)) {
-                    try (Stream<Path> walk = Files.walk(jarFs.getPath("/"))) {
-                        walk.filter(path -> !path.startsWith("/META-INF/"))
-                                .filter(Files::isRegularFile)
-                                .forEach(path -> {
-                                    String pathString = path.toString();
-                                    if (pathString.startsWith("/")) {
-                                        pathString = pathString.substring(1);
-                                    }
-                                    Path nativesRelativePath = nativesPath.resolve(pathString);
-                                    try {
-                                        if (!Files.exists(nativesRelativePath)) {
-                                            Files.createDirectories(nativesRelativePath.getParent());
-                                            Files.copy(path, nativesRelativePath);
-                                        }
-                                    } catch (IOException e) {
-                                        throw new RuntimeException(String.format("Unable to unzip and copy file %s to %s", path, nativesRelativePath), e);
-                                    }
-                                });
+                CompletableFuture<Void> download = nativeDownloads.getOrDefault(library, CompletableFuture.completedFuture(null));
+                NativesStream stream = nativeStreams.get(library);
+                extractions.add(download.thenRunAsync(() -> {
+                    if (NativesStamp.isCurrent(nativesPath, jarPath, nativeArtifact.sha1)) {
+                        return;
                     }
+                    // Natives directories are shared between releases, and so between instances launching different releases
+                    try (CacheLock lock = CacheLock.forArtifact(nativesPath)) {
+                        if (!lock.isContended() || !NativesStamp.isCurrent(nativesPath, jarPath, nativeArtifact.sha1)) {
+                            List<String> streamed = stream == null ? null : stream.extracted;
+                            if (stream != null && streamed == null) {
+                                stream.discard();
+                            }
+                            NativesStamp.write(nativesPath, jarPath, nativeArtifact.sha1, streamed != null ? streamed : extractNative(jarPath, nativesPath));
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(String.format("Unable to extract natives into %s", nativesPath), e);
+                    }
+                }, executor));
+            }
+        }
+        return CompletableFuture.allOf(extractions.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Extracts every native library of the jar for the current platform, replacing what is already there.
+     *
+     * @return the extracted files relative to nativesPath
+     */
+    private static List<String> extractNative(Path jarPath, Path nativesPath) {
+        long start = System.nanoTime();
+        List<String> extracted = new ArrayList<>();
+        Platform platform = Platform.current();
+        try (ZipFile jar = new ZipFile(jarPath.toFile())) {
+            Enumeration<? extends ZipEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                Path nativesRelativePath = nativeTarget(entry, nativesPath, platform);
+                if (nativesRelativePath == null) {
+                    continue;
+                }
+                try (InputStream is = jar.getInputStream(entry)) {
+                    Files.createDirectories(nativesRelativePath.getParent());
+                    extractToStore(is, nativesRelativePath);
+                    extracted.add(name);
                 } catch (IOException e) {
-                    throw new RuntimeException(String.format("Unable to extract from jar %s for its natives", jarPath), e);
+                    throw new RuntimeException(String.format("Unable to unzip and copy file %s to %s", name, nativesRelativePath), e);
                 }
             }
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Unable to extract from jar %s for its natives", jarPath), e);
         }
+        CleanroomRelauncher.LOGGER.debug("Extracted {} natives from {} in {}ms", extracted.size(), jarPath.getFileName(), (System.nanoTime() - start) / 1_000_000L);
+        return extracted;
+    }
+
+    private static Path nativesPathOf(Path nativesDirectory, String relative) {
+        return nativesDirectory.resolve(relative.substring(0, relative.lastIndexOf('.')));
+    }
+
+    /**
+     * @return where the entry is extracted to, or null if it is not a native library for the platform
+     */
+    private static Path nativeTarget(ZipEntry entry, Path nativesPath, Platform platform) {
+        String name = entry.getName();
+        if (entry.isDirectory() || name.startsWith("META-INF/") || !isNativeFor(name, platform)) {
+            return null;
+        }
+        Path target = nativesPath.resolve(name).normalize();
+        return target.startsWith(nativesPath.normalize()) ? target : null;
+    }
+
+    /**
+     * Whether a natives jar entry is a native library for the platform. Entries under a directory named after an architecture,
+     * as laid out by LWJGL 3, are only extracted for that architecture.
+     */
+    private static boolean isNativeFor(String name, Platform platform) {
+        String lowerName = name.toLowerCase(Locale.ROOT);
+        String fileName = lowerName.substring(lowerName.lastIndexOf('/') + 1);
+        boolean library;
+        switch (platform.operatingSystem()) {
+            case WINDOWS:
+                library = fileName.endsWith(".dll");
+                break;
+            case MAC_OS:
+                library = fileName.endsWith(".dylib") || fileName.endsWith(".jnilib");
+                break;
+            default:
+                library = VERSIONED_SHARED_OBJECT.matcher(fileName).matches();
+        }
+        if (!library) {
+            return false;
+        }
+        String arch = platform.isArm() ? (platform.is64Bit() ? "arm64" : "arm32") : (platform.is64Bit() ? "x64" : "x86");
+        String[] segments = lowerName.split("/");
+        for (int i = 0; i < segments.length - 1; i++) {
+            String segmentArch = ARCHITECTURES.get(segments[i]);
+            if (segmentArch != null && !segmentArch.equals(arch)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Natives are the same across most releases, they are extracted into the {@link BlobStore} once and linked from there.
+     * The entry stream is left open, it may be a {@link ZipInputStream} positioned at one of many entries.
+     */
+    private static void extractToStore(InputStream entry, Path target) throws IOException {
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".extract");
+        MessageDigest digest = DigestUtils.getSha1Digest();
+        Files.copy(new DigestInputStream(entry, digest), temp, StandardCopyOption.REPLACE_EXISTING);
+        String sha1 = Hex.encodeHexString(digest.digest());
+        BlobStore.INSTANCE.adopt(temp, sha1);
+        if (!BlobStore.INSTANCE.materialize(sha1, -1L, target)) {
+            throw new IOException(String.format("Unable to link %s from the blob store", target));
+        }
+    }
+
+    /**
+     * Extracts natives from a natives jar while it downloads. They are staged apart from the natives directory and only
+     * moved into it once the jar verified, until then {@link #extracted} stays null and the natives are extracted from the
+     * jar as usual.
+     */
+    private static final class NativesStream implements StreamConsumer {
+
+        private static final String STAGING = ".streamed";
+
+        private final Path nativesPath;
+        private final Path staging;
+
+        private volatile List<String> consumed;
+        private volatile List<String> extracted;
+
+        private NativesStream(Path nativesPath) {
+            this.nativesPath = nativesPath;
+            // Inside the natives directory, so it is evicted along with it, and private to this process so that staging needs no lock
+            this.staging = nativesPath.resolve(STAGING + "-" + ProcessIdUtil.getProcessId());
+        }
+
+        @Override
+        public void consume(InputStream stream) throws IOException {
+            this.consumed = null;
+            long start = System.nanoTime();
+            List<String> files = new ArrayList<>();
+            Platform platform = Platform.current();
+            this.discard();
+            // Not closed, the downloader owns the stream
+            ZipInputStream zip = new ZipInputStream(stream);
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                Path target = nativeTarget(entry, this.staging, platform);
+                if (target != null) {
+                    Files.createDirectories(target.getParent());
+                    extractToStore(zip, target);
+                    files.add(entry.getName());
+                }
+            }
+            this.consumed = files;
+            CleanroomRelauncher.LOGGER.debug("Streamed {} natives of {} in {}ms", files.size(), this.nativesPath, (System.nanoTime() - start) / 1_000_000L);
+        }
+
+        @Override
+        public void verified() {
+            List<String> files = this.consumed;
+            try (CacheLock lock = CacheLock.forArtifact(this.nativesPath)) {
+                for (String name : files) {
+                    Path target = this.nativesPath.resolve(name);
+                    Files.createDirectories(target.getParent());
+                    AtomicFiles.move(this.staging.resolve(name), target);
+                }
+                this.discard();
+                this.extracted = files;
+            } catch (IOException e) {
+                CleanroomRelauncher.LOGGER.warn("Unable to move the natives streamed for {} into place, extracting them from the jar instead.", this.nativesPath, e);
+            }
+        }
+
+        /**
+         * Deletes whatever is staged, natives that were streamed from a download which failed to verify are left behind.
+         */
+        private void discard() throws IOException {
+            if (!Files.exists(this.staging)) {
+                return;
+            }
+            List<Path> staged;
+            try (Stream<Path> walk = Files.walk(this.staging)) {
+                staged = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+            }
+            for (Path path : staged) {
+                Files.deleteIfExists(path);
+            }
+        }
+
     }
 
     public class AssetIndex {
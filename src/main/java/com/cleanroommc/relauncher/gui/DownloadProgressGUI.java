@@ -0,0 +1,105 @@
+package com.cleanroommc.relauncher.gui;
+
+import com.cleanroommc.relauncher.download.DownloadListener;
+import com.cleanroommc.relauncher.download.DownloadProgress;
+import com.cleanroommc.relauncher.download.GlobalDownloader;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Shows byte-level progress while Cleanroom and its libraries download. Stays hidden on warm launches where nothing
+ * needs to be fetched.
+ */
+public class DownloadProgressGUI extends JFrame implements DownloadListener {
+
+    private static final int VISIBLE_FILES = 6;
+
+    public static DownloadProgressGUI attach() {
+        ImageIcon imageIcon = new ImageIcon(Toolkit.getDefaultToolkit().getImage(DownloadProgressGUI.class.getResource("/cleanroom-relauncher.png")));
+        DownloadProgressGUI gui = new DownloadProgressGUI(imageIcon);
+        GlobalDownloader.INSTANCE.addListener(gui);
+        return gui;
+    }
+
+    private final AtomicReference<DownloadProgress> pending = new AtomicReference<>();
+    private final JProgressBar progressBar = new JProgressBar(0, 1000);
+    private final JLabel summary = new JLabel(" ");
+    private final DefaultListModel<String> files = new DefaultListModel<>();
+
+    private DownloadProgressGUI(ImageIcon icon) {
+        super("Downloading Cleanroom");
+        this.setIconImage(icon.getImage());
+        this.setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+
+        JPanel mainPanel = new JPanel(new BorderLayout(0, 8));
+        mainPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+
+        this.progressBar.setStringPainted(true);
+        JPanel header = new JPanel(new BorderLayout(0, 5));
+        header.add(this.progressBar, BorderLayout.NORTH);
+        header.add(this.summary, BorderLayout.SOUTH);
+        mainPanel.add(header, BorderLayout.NORTH);
+
+        JList<String> fileList = new JList<>(this.files);
+        fileList.setVisibleRowCount(VISIBLE_FILES);
+        fileList.setEnabled(false);
+        mainPanel.add(new JScrollPane(fileList), BorderLayout.CENTER);
+
+        this.add(mainPanel);
+        this.setSize(480, 260);
+        this.setLocationRelativeTo(null);
+    }
+
+    @Override
+    public void onProgress(DownloadProgress progress) {
+        // Only the latest snapshot matters, queue at most one repaint on the EDT
+        if (this.pending.getAndSet(progress) == null) {
+            SwingUtilities.invokeLater(this::refresh);
+        }
+    }
+
+    public void detach() {
+        GlobalDownloader.INSTANCE.removeListener(this);
+        SwingUtilities.invokeLater(this::dispose);
+    }
+
+    private void refresh() {
+        DownloadProgress progress = this.pending.getAndSet(null);
+        if (progress == null || !this.isDisplayable()) {
+            return;
+        }
+        if (!this.isVisible()) {
+            if (progress.isFinished()) {
+                return;
+            }
+            this.setVisible(true);
+        }
+        int permille = progress.totalBytes > 0 ? (int) (progress.completedBytes * 1000L / progress.totalBytes) : 0;
+        this.progressBar.setValue(permille);
+        this.progressBar.setString(String.format("%d / %d files", progress.completedFiles, progress.totalFiles));
+        StringBuilder text = new StringBuilder(String.format("%.1f / %.1f MiB | %.2f MiB/s",
+                mebibytes(progress.completedBytes), mebibytes(progress.totalBytes), mebibytes(progress.bytesPerSecond)));
+        if (progress.etaSeconds >= 0) {
+            text.append(String.format(" | %d:%02d remaining", progress.etaSeconds / 60, progress.etaSeconds % 60));
+        }
+        if (progress.failedFiles > 0) {
+            text.append(" | ").append(progress.failedFiles).append(" failed");
+        }
+        this.summary.setText(text.toString());
+        this.files.clear();
+        for (DownloadProgress.FileState file : progress.files) {
+            if (file.state == DownloadProgress.State.DOWNLOADING) {
+                this.files.addElement(file.size > 0 ?
+                        String.format("%s (%d%%)", file.name, file.transferred * 100L / file.size) :
+                        String.format("%s (%.1f MiB)", file.name, mebibytes(file.transferred)));
+            }
+        }
+    }
+
+    private static double mebibytes(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+
+}
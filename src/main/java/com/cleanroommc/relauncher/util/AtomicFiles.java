@@ -0,0 +1,68 @@
+package com.cleanroommc.relauncher.util;
+
+import com.cleanroommc.relauncher.CleanroomRelauncher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Replaces files so that concurrent readers, in this process or another, only ever see the old or the new file and never
+ * a partial one. Temporary files are written beside their destination and end in {@link #TEMP_SUFFIX}.
+ */
+public final class AtomicFiles {
+
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    @FunctionalInterface
+    public interface Content {
+
+        void writeTo(OutputStream out) throws IOException;
+
+    }
+
+    /**
+     * Moves a file over the destination, atomically where the filesystem allows it.
+     */
+    public static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Writes the content to a temporary file beside the destination and moves it into place.
+     */
+    public static void write(Path file, Content content) throws IOException {
+        Files.createDirectories(file.getParent());
+        // Unique across processes writing the same file
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), TEMP_SUFFIX);
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                content.writeTo(out);
+            }
+            move(temp, file);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public static void writeJson(Path file, Object object) throws IOException {
+        write(file, out -> {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            CleanroomRelauncher.GSON.toJson(object, writer);
+            writer.flush();
+        });
+    }
+
+    private AtomicFiles() { }
+
+}
@@ -0,0 +1,42 @@
+package com.cleanroommc.relauncher.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pool for the CPU and disk bound steps of an install, such as parsing version jsons and extracting natives.
+ * Network transfers do not belong here, they run on the downloader's own pool.
+ */
+public final class Workers {
+
+    public static final ExecutorService POOL;
+    /**
+     * Runs consumers of download streams. They block on the network for as long as their download lasts, so they get
+     * threads of their own instead of taking the pool's. There are never more of them than downloads running at once.
+     */
+    public static final ExecutorService STREAMS = Executors.newCachedThreadPool(daemon("Relauncher Stream #"));
+
+    static {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 10L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), daemon("Relauncher Worker #"));
+        pool.allowCoreThreadTimeOut(true);
+        POOL = pool;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private Workers() { }
+
+}
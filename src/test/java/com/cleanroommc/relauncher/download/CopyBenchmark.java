@@ -0,0 +1,122 @@
+package com.cleanroommc.relauncher.download;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Times the copy downloads used to make, through a heap array of 8 KiB allocated per download and an OutputStream, against
+ * {@link FileDownload#copy} and its pooled direct buffer. Both hash what they copy like a download with a known SHA-1 and
+ * report to a transfer monitor, so only the copy itself differs. The results are only reported, they vary too much between
+ * machines to assert on.
+ */
+public class CopyBenchmark {
+
+    private static final int SIZE = 32 * 1024 * 1024;
+    // The most a read from a socket stream tends to return
+    private static final int READ_SIZE = 16 * 1024;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void streamCopyAgainstPooledBuffer() throws Exception {
+        byte[] data = new byte[SIZE];
+        new Random(0L).nextBytes(data);
+        byte[] expected = MessageDigest.getInstance("SHA-1").digest(data);
+        Path directory = Files.createTempDirectory(TestEnvironment.home(), "copy");
+        Path streamed = directory.resolve("streamed.bin");
+        Path pooled = directory.resolve("pooled.bin");
+
+        long streamBest = Long.MAX_VALUE;
+        long pooledBest = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            long start = System.nanoTime();
+            assertEquals(SIZE, streamCopy(new SocketLikeStream(data), streamed, digest));
+            long elapsed = System.nanoTime() - start;
+            assertArrayEquals(expected, digest.digest());
+            if (round >= WARMUP_ROUNDS) {
+                streamBest = Math.min(streamBest, elapsed);
+            }
+
+            digest = MessageDigest.getInstance("SHA-1");
+            start = System.nanoTime();
+            assertEquals(SIZE, pooledCopy(new SocketLikeStream(data), pooled, digest));
+            elapsed = System.nanoTime() - start;
+            assertArrayEquals(expected, digest.digest());
+            if (round >= WARMUP_ROUNDS) {
+                pooledBest = Math.min(pooledBest, elapsed);
+            }
+        }
+        assertArrayEquals(data, Files.readAllBytes(pooled));
+
+        System.out.printf("Copied %d MiB, best of %d rounds: stream copy %dms (%d MiB/s), pooled buffer %dms (%d MiB/s)%n",
+                SIZE / (1024 * 1024), ROUNDS, TimeUnit.NANOSECONDS.toMillis(streamBest), throughput(streamBest),
+                TimeUnit.NANOSECONDS.toMillis(pooledBest), throughput(pooledBest));
+    }
+
+    /**
+     * The copy downloads made before they moved onto channels.
+     */
+    private static long streamCopy(InputStream source, Path target, MessageDigest digest) throws IOException {
+        FileDownload.TransferMonitor monitor = monitor();
+        long written = 0L;
+        try (InputStream is = source; OutputStream os = Files.newOutputStream(target)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                monitor.update(read);
+                os.write(buffer, 0, read);
+                digest.update(buffer, 0, read);
+                written += read;
+            }
+        }
+        return written;
+    }
+
+    private static long pooledCopy(InputStream stream, Path target, MessageDigest digest) throws IOException {
+        try (ReadableByteChannel source = Channels.newChannel(stream);
+             FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            return FileDownload.copy(source, channel, 0L, digest, monitor());
+        }
+    }
+
+    private static FileDownload.TransferMonitor monitor() {
+        return new FileDownload.TransferMonitor(null, new AdaptiveConcurrency(4, 4), new ProgressTracker().track("copy", SIZE), 0L, 0L, 0L);
+    }
+
+    private static long throughput(long nanos) {
+        return SIZE * TimeUnit.SECONDS.toNanos(1L) / nanos / (1024 * 1024);
+    }
+
+    /**
+     * Hands out the bytes a socket's worth at a time.
+     */
+    private static final class SocketLikeStream extends ByteArrayInputStream {
+
+        private SocketLikeStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public synchronized int read(byte[] bytes, int offset, int length) {
+            return super.read(bytes, offset, Math.min(length, READ_SIZE));
+        }
+
+    }
+
+}
@@ -0,0 +1,176 @@
+package com.cleanroommc.relauncher.download;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs downloads against a local server that is slow to respond, trickles its body or goes silent.
+ */
+public class FileDownloadTest {
+
+    private static final int HEDGED_SIZE = 2 * 1024 * 1024;
+    private static final int SLOW_SIZE = 64 * 1024;
+
+    private static final CompletableFuture<Boolean> slowPrimaryWritten = new CompletableFuture<>();
+
+    private static HttpServer server;
+    private static ExecutorService handlers;
+    private static String base;
+
+    @BeforeAll
+    public static void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // Answers the downloader's connectivity probe
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.createContext("/fast/hedged", exchange -> respond(exchange, HEDGED_SIZE, (byte) 'B', HEDGED_SIZE, 0L));
+        server.createContext("/slow/hedged", exchange -> {
+            sleep(5000L);
+            try {
+                respond(exchange, HEDGED_SIZE, (byte) 'A', 16 * 1024, 10L);
+                slowPrimaryWritten.complete(true);
+            } catch (IOException e) {
+                slowPrimaryWritten.complete(false);
+            }
+        });
+        server.createContext("/trickle", exchange -> respond(exchange, SLOW_SIZE, (byte) 'T', 64, 250L));
+        server.createContext("/silent", exchange -> respond(exchange, SLOW_SIZE, (byte) 'S', 100, 20_000L));
+        server.createContext("/crawl", exchange -> respond(exchange, SLOW_SIZE, (byte) 'C', 8 * 1024, 500L));
+        handlers = Executors.newCachedThreadPool();
+        server.setExecutor(handlers);
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    @AfterAll
+    public static void stop() {
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    @Test
+    public void hedgeWinsAndPrimaryIsCancelled() throws Exception {
+        GlobalDownloader downloader = TestEnvironment.downloader(config(String.format("\"%sfast/\": [\"%sslow/\"]", base, base), ""));
+        // Hedging only starts once enough responses were timed, all of these were quick
+        for (int i = 0; i < 20; i++) {
+            downloader.recordFirstByte(10L);
+        }
+        Path destination = destination("hedged.bin");
+
+        long start = System.nanoTime();
+        downloader.from(base + "fast/hedged", destination.toFile(), null, HEDGED_SIZE).get(4, TimeUnit.SECONDS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(elapsed < 5000L, "Waited " + elapsed + "ms for the primary instead of the hedge");
+        byte[] expected = new byte[HEDGED_SIZE];
+        Arrays.fill(expected, (byte) 'B');
+        assertArrayEquals(expected, Files.readAllBytes(destination));
+        assertFalse(slowPrimaryWritten.get(20, TimeUnit.SECONDS), "The cancelled primary read its whole response");
+        assertFalse(Files.exists(destination.resolveSibling("hedged.bin.part")));
+        assertFalse(Files.exists(destination.resolveSibling("hedged.bin.hedge.part")));
+    }
+
+    @Test
+    public void trickleIsAbandonedAsStalled() throws Exception {
+        GlobalDownloader downloader = TestEnvironment.downloader(config("", "\"downloadStallWindow\": 1"));
+        CompletableFuture<Void> download = downloader.from(base + "trickle", destination("trickle.bin").toFile(), null, SLOW_SIZE);
+        assertTrue(failure(download, 15L).contains("stalled"));
+    }
+
+    @Test
+    public void silentConnectionFailsWithinStallWindow() throws Exception {
+        GlobalDownloader downloader = TestEnvironment.downloader(config("", "\"downloadStallWindow\": 1, \"downloadReadTimeout\": 30"));
+        long start = System.nanoTime();
+        CompletableFuture<Void> download = downloader.from(base + "silent", destination("silent.bin").toFile(), null, SLOW_SIZE);
+        String failure = failure(download, 15L);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(failure.contains("timed out"), failure);
+        // Every attempt gave up after the stall window, not the configured read timeout
+        assertTrue(elapsed < 15_000L, "Took " + elapsed + "ms");
+    }
+
+    @Test
+    public void deadlineFailsSlowTransfer() throws Exception {
+        // 1s, extended by another for the 64 KiB to fetch, while the server takes 4s
+        GlobalDownloader downloader = TestEnvironment.downloader(config("", "\"downloadDeadline\": 1, \"downloadStallWindow\": 0"));
+        CompletableFuture<Void> download = downloader.from(base + "crawl", destination("crawl.bin").toFile(), null, SLOW_SIZE);
+        assertTrue(failure(download, 20L).contains("deadline"));
+    }
+
+    private static String config(String mirrors, String options) {
+        String probe = String.format("\"https://api.github.com/\": [\"%s\"]", base);
+        return String.format("{\"mirrors\": {%s%s}%s}", probe, mirrors.isEmpty() ? "" : ", " + mirrors, options.isEmpty() ? "" : ", " + options);
+    }
+
+    private static Path destination(String name) throws IOException {
+        return Files.createTempDirectory(TestEnvironment.home(), "download").resolve(name);
+    }
+
+    /**
+     * @return every message of the failure, its causes and what it suppressed
+     */
+    private static String failure(CompletableFuture<Void> download, long seconds) {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> download.get(seconds, TimeUnit.SECONDS));
+        StringBuilder messages = new StringBuilder();
+        describe(e.getCause(), messages);
+        return messages.toString();
+    }
+
+    private static void describe(Throwable t, StringBuilder messages) {
+        if (t == null) {
+            return;
+        }
+        messages.append(t).append('\n');
+        for (Throwable suppressed : t.getSuppressed()) {
+            describe(suppressed, messages);
+        }
+        describe(t.getCause(), messages);
+    }
+
+    /**
+     * Sends the body in pieces, sleeping after each one.
+     */
+    private static void respond(HttpExchange exchange, int size, byte fill, int piece, long pause) throws IOException {
+        try {
+            exchange.sendResponseHeaders(200, size);
+            byte[] bytes = new byte[piece];
+            Arrays.fill(bytes, fill);
+            OutputStream body = exchange.getResponseBody();
+            for (int sent = 0; sent < size; sent += piece) {
+                body.write(bytes, 0, Math.min(piece, size - sent));
+                body.flush();
+                sleep(pause);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
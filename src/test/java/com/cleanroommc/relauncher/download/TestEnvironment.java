@@ -0,0 +1,41 @@
+package com.cleanroommc.relauncher.download;
+
+import com.cleanroommc.relauncher.config.RelauncherConfiguration;
+import net.minecraft.launchwrapper.Launch;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Points the relauncher's configuration and cache at a temporary directory, before either is first read.
+ */
+final class TestEnvironment {
+
+    private static Path home;
+
+    static synchronized Path home() {
+        if (home == null) {
+            try {
+                home = Files.createTempDirectory("relauncher-test");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            System.setProperty("user.home", home.toString());
+            Launch.minecraftHome = home.toFile();
+        }
+        return home;
+    }
+
+    /**
+     * @param json the configuration, options it leaves out keep their defaults
+     */
+    static GlobalDownloader downloader(String json) {
+        home();
+        return new GlobalDownloader(RelauncherConfiguration.GSON.fromJson(json, RelauncherConfiguration.class));
+    }
+
+    private TestEnvironment() { }
+
+}